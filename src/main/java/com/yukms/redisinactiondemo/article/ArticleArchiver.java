@@ -0,0 +1,192 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import com.yukms.redisinactiondemo.common.util.PeriodLeases;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 文章归档。
+ * <p/>
+ * {@link ArticleService}从来不删除文章，时间、点赞、热度以及分组的有序集合会一直增长，
+ * 排名和组合查询也会越来越慢。归档任务定期把发布时间超过{@code maxAgeSeconds}的文章
+ * 从所有索引里面移除，文章本身使用{@link ArticleCodec}编码之后按文章ID的散列值保存到多个
+ * {@code archive:article:<桶>}散列里面，所有节点都可以通过{@link #load}读取。
+ * 桶的数量按{@code expectedArticles}计算，每个桶平均{@value #ARTICLES_PER_BUCKET}篇文章，也可以用{@code buckets}直接指定。
+ * <p/>
+ * 一个桶的字段数不超过{@code hash-max-ziplist-entries}（默认128）、每个值不超过{@code hash-max-ziplist-value}
+ * （默认64字节）时，Redis用紧凑编码保存整个散列，一篇归档文章只占编码之后的字节数，
+ * 而不是文章散列加上每个索引里面的一个成员。编码之后的文章通常超过64字节，需要把{@code hash-max-ziplist-value}
+ * 调大到文章编码之后的长度以上；归档的文章明显多于{@code expectedArticles}时桶会超过128个字段，变回普通的散列。
+ * <p/>
+ * 每批只用ZRANGEBYSCORE读取{@code batchSize}篇最早发布的文章，先写入归档散列，再用一个流水线删除，
+ * 单条命令的工作量很小，不会长时间阻塞服务器；归档写入失败时这一批文章不会被删除。
+ * <p/>
+ * 所有开启归档的节点都会定时运行，每个周期只有抢到{@link PeriodLeases 租约}的节点才会归档。
+ *
+ * @author yukms 2019/1/24
+ */
+@Component
+@ConfigurationProperties("article.archive")
+public class ArticleArchiver {
+    private static final Logger LOG = LoggerFactory.getLogger(ArticleArchiver.class);
+    @Autowired
+    private ArticleService articleService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    /** 归档的文章，加上桶号就是这个桶的散列 */
+    private static final String ARCHIVE = "archive:article:";
+    /** 归档租约，加上周期就是这个周期的租约 */
+    private static final String ARCHIVE_LEASE = "lock:archive:article:";
+    /** 每个桶平均的文章数，低于hash-max-ziplist-entries的默认值128 */
+    private static final int ARTICLES_PER_BUCKET = 100;
+    private boolean enabled;
+    /** 文章保留时间，单位秒，默认30天 */
+    private long maxAgeSeconds = 30 * 86400L;
+    /** 每批归档的文章数 */
+    private int batchSize = 100;
+    /** 每次运行最多归档的批数，剩下的留给下一次运行 */
+    private int maxBatchesPerRun = 100;
+    /** 运行间隔，单位秒 */
+    private long intervalSeconds = 600;
+    /** 预计归档的文章数，用来计算桶的数量，默认是1024个桶 */
+    private long expectedArticles = 102400;
+    /** 归档散列的数量，0表示按expectedArticles计算；桶的数量变了之后已经归档的文章会读取不到 */
+    private int buckets;
+    private ScheduledExecutorService scheduler;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxAgeSeconds(long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxBatchesPerRun(int maxBatchesPerRun) {
+        this.maxBatchesPerRun = maxBatchesPerRun;
+    }
+
+    public void setIntervalSeconds(long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    public void setExpectedArticles(long expectedArticles) {
+        this.expectedArticles = expectedArticles;
+    }
+
+    public void setBuckets(int buckets) {
+        this.buckets = buckets;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("article-archiver"));
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                archive();
+            } catch (RuntimeException e) {
+                // 没有删除的文章下一次运行时会重新归档
+                LOG.warn("Failed to archive articles", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 归档发布时间超过保留时间的文章
+     *
+     * @return 归档的文章数，没有抢到这个周期的租约时为-1
+     */
+    public long archive() {
+        if (!PeriodLeases.tryAcquire(stringRedisTemplate, ARCHIVE_LEASE, intervalSeconds)) {
+            return -1;
+        }
+        long cutoff = SystemUtil.getNowTimetamp() - maxAgeSeconds;
+        long total = 0;
+        for (int i = 0; i < maxBatchesPerRun; i++) {
+            List<Article> articles = articleService.getPublishedBefore(cutoff, batchSize);
+            if (articles.isEmpty()) {
+                break;
+            }
+            save(articles);
+            articleService.remove(articles);
+            total += articles.size();
+        }
+        if (total > 0) {
+            LOG.info("Archived {} articles published before {}", total, cutoff);
+        }
+        return total;
+    }
+
+    /**
+     * 读取归档的文章
+     *
+     * @param id 文章ID
+     * @return 文章，没有归档时为空
+     */
+    public Optional<Article> load(String id) {
+        byte[] key = bucketKey(id);
+        byte[] field = id.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = stringRedisTemplate
+            .execute((RedisCallback<byte[]>) connection -> connection.hGet(key, field));
+        return encoded == null ? Optional.empty() : Optional.of(ArticleCodec.decode(encoded));
+    }
+
+    /**
+     * 用一个流水线把一批文章写入归档散列，任何一条命令失败都会抛出异常
+     */
+    private void save(List<Article> articles) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Article article : articles) {
+                connection.hSet(bucketKey(article.getId()), article.getId().getBytes(StandardCharsets.UTF_8),
+                    ArticleCodec.encode(article));
+            }
+            return null;
+        });
+    }
+
+    private byte[] bucketKey(String id) {
+        return (ARCHIVE + Math.floorMod(id.hashCode(), bucketCount())).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 桶的数量，没有指定时按预计的文章数计算
+     */
+    int bucketCount() {
+        if (buckets > 0) {
+            return buckets;
+        }
+        return (int) Math.max(1, (expectedArticles + ARTICLES_PER_BUCKET - 1) / ARTICLES_PER_BUCKET);
+    }
+}
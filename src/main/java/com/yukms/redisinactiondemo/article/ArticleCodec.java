@@ -0,0 +1,106 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yukms.redisinactiondemo.article.entity.Article;
+
+/**
+ * 文章的紧凑二进制编码。
+ * <p/>
+ * 文章散列有5个字段，每个字段名都要占用内存，数字也是以字符串形式存储的。
+ * 这里把一篇文章编码成一个字节数组：时间和点赞数使用变长整数，字符串使用变长长度前缀加UTF-8。
+ * <p/>
+ * 点赞数需要HINCRBY以及投票脚本原子地修改，所以正在排名中的文章仍然使用散列存储，
+ * 这个编码用于不再变化的文章，比如归档的文章。
+ *
+ * @author yukms 2019/1/24
+ */
+public final class ArticleCodec {
+    private static final byte VERSION = 1;
+
+    private ArticleCodec() {
+    }
+
+    public static byte[] encode(Article article) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(VERSION);
+        writeVarLong(out, article.getTime());
+        writeVarLong(out, article.getVotes());
+        writeString(out, article.getId());
+        writeString(out, article.getTitle());
+        List<String> groups = article.getGroups();
+        writeVarLong(out, groups.size());
+        for (String group : groups) {
+            writeString(out, group);
+        }
+        return out.toByteArray();
+    }
+
+    public static Article decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported article codec version: " + version);
+        }
+        Article article = new Article();
+        article.setTime(readVarLong(buffer));
+        article.setVotes(readVarLong(buffer));
+        article.setId(readString(buffer));
+        article.setTitle(readString(buffer));
+        int size = (int) readVarLong(buffer);
+        List<String> groups = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            groups.add(readString(buffer));
+        }
+        article.setGroups(groups);
+        return article;
+    }
+
+    /**
+     * ZigZag编码之后每7位一组写入，小的数字只占1到2个字节
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.write((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.write((int) zigZag);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long zigZag = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) readVarLong(buffer);
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
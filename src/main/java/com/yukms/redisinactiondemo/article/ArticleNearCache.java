@@ -0,0 +1,141 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+
+import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.common.util.LocalCache;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+/**
+ * 文章近端缓存。
+ * <p/>
+ * 首页上的几百篇文章会被所有节点每秒读取成千上万次。开启之后，{@link ArticleService}读取文章时先查进程内的缓存，
+ * 只有未命中的文章才会去Redis读取。文章被添加或者点赞时，{@link ArticleService}会在同一次网络往返里面
+ * 向{@link #CHANNEL}频道发布失效消息（内容为逗号分隔的文章键），所有节点收到后删除本地的旧文章。
+ * 消息可能丢失（比如订阅连接断开），所以缓存条目仍然有过期时间作为兜底。
+ * <p/>
+ * 失效消息可能在从Redis读取文章期间到达，这时读到的可能是旧文章。每个文章键对应一个失效代数（按键的散列值分段），
+ * 收到失效消息时加一；读取之前先取得代数，放入缓存之后代数变了就删除刚放入的文章，
+ * 避免旧文章在整个过期时间里面都留在缓存里。
+ *
+ * @author yukms 2019/1/24
+ */
+@Component
+@ConfigurationProperties("article.near-cache")
+public class ArticleNearCache implements MessageListener {
+    /** 文章失效频道 */
+    public static final String CHANNEL = "article:invalidate";
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    private boolean enabled;
+    /** 最多缓存的文章数 */
+    private int maxSize = 1000;
+    /** 过期时间，单位毫秒 */
+    private long ttlMillis = 5000;
+    /** 失效代数的分段数 */
+    private static final int GENERATION_STRIPES = 1024;
+    private LocalCache<String, Article> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = new LocalCache<>(maxSize, ttlMillis);
+        if (enabled) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Article get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * @param key 文章键
+     * @return 文章键当前的失效代数，从Redis读取文章之前调用
+     */
+    public long generation(String key) {
+        return generations.get(stripe(key));
+    }
+
+    /**
+     * @param key        文章键
+     * @param article    从Redis读取的文章
+     * @param generation 读取之前的失效代数
+     */
+    public void put(String key, Article article, long generation) {
+        cache.put(key, article);
+        // 读取期间收到了失效消息，刚放入的文章可能是旧的
+        if (generation(key) != generation) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * 先增加失效代数再删除，和{@link #put}的顺序相反，正在读取的旧文章不会留在缓存里
+     *
+     * @param key 文章键
+     */
+    void invalidate(String key) {
+        generations.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    private int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    /**
+     * @param keys 文章键
+     * @return 失效消息
+     */
+    public static String invalidation(Collection<String> keys) {
+        return StringUtils.join(keys, ",");
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String keys = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String key : keys.split(",")) {
+            invalidate(key);
+        }
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public double getHitRatio() {
+        return cache.getHitRatio();
+    }
+}
@@ -1,22 +1,37 @@
 package com.yukms.redisinactiondemo.article;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.article.entity.ArticlePage;
+import com.yukms.redisinactiondemo.common.util.RedisScripts;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.connection.RedisZSetCommands;
-import org.springframework.data.redis.core.HashOperations;
-import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.DigestUtils;
 
 /**
  * 这里是将关系型数据库转换为非关系数据库。
@@ -25,76 +40,566 @@ import org.springframework.stereotype.Service;
  */
 @Service
 public class ArticleService {
+    private static final Logger LOG = LoggerFactory.getLogger(ArticleService.class);
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private ArticleNearCache nearCache;
     /** 文章 */
     private static final String ARTICLE = "article:";
-    /** 文章发布时间 */
+    /** 文章发布时间，加上分组名就是该分组的发布时间有序集合 */
     private static final String TIME = "time:";
-    /** 文章点赞数 */
+    /** 文章点赞数，加上分组名就是该分组的点赞有序集合 */
     private static final String VOTES = "votes:";
+    /** 文章热度（发布时间加上点赞数乘以{@link #VOTE_SCORE}），加上分组名就是该分组的热度有序集合 */
+    private static final String SCORE = "score:";
+    /** 一票相当于多少秒的发布时间：一天86400秒，获得200票的文章就能在首页多停留一天 */
+    private static final long VOTE_SCORE = 432;
     /** 文章分组 */
     private static final String GROUP = "group:";
+    /** 给文章投过票的用户 */
+    private static final String VOTED = "voted:";
+    /** 文章发布一周之后就不能再投票了 */
+    private static final long VOTE_WINDOW_SECONDS = 7 * 86400L;
+    private static final RedisScript<Long> VOTE_SCRIPT = RedisScripts.load("script/article_vote.lua", Long.class);
+    private static final RedisScript<List> PAGE_AFTER_SCRIPT = RedisScripts.load("script/page_after.lua",
+        List.class);
+    /** 组合查询的结果 */
+    private static final String QUERY = "query:";
+    /** 组合查询结果的缓存时间 */
+    private static final long QUERY_TTL_SECONDS = 60;
+    /** 批量导入时默认每批的文章数 */
+    private static final int DEFAULT_BATCH_SIZE = 500;
 
     public List<Article> get(String sort, String group) {
         List<String> keys = getKeys(sort, group);
         return getArticles(keys);
     }
 
-    public void add(List<Article> articles) {
-        HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
+    /**
+     * 分页读取分组里面的文章。
+     * <p/>
+     * 游标记录的是上一页最后一篇文章的分值和键，下一页从这篇文章之后开始读取，而不是按排名读取，
+     * 分值相同的文章按键排序。这样在翻页的同时即使有文章被点赞，排名发生了变化，
+     * 或者有其他文章的分值变得和游标的分值相同，也不会出现重复或者遗漏的文章。
+     * <p/>
+     * 一页通常只需要两次网络往返：一次读取文章键，一次用流水线读取这一页所有文章的散列。
+     *
+     * @param sort      排序方式，time、votes或hot
+     * @param group     分组
+     * @param cursor    上一页返回的游标，读取第一页时为null
+     * @param pageSize  每页的文章数
+     * @param direction 排序方向
+     * @return 文章分页结果
+     */
+    public ArticlePage get(String sort, String group, String cursor, int pageSize, SortDirection direction) {
+        return getPage(sortKey(sort) + group, cursor, pageSize, direction);
+    }
+
+    /**
+     * 按多个分组的组合查询文章。
+     * <p/>
+     * 单个分组直接使用分组的有序集合；组合查询会对子查询的有序集合执行一次ZINTERSTORE或ZUNIONSTORE，
+     * 结果存到以查询规范形式命名的临时键里面，并设置{@link #QUERY_TTL_SECONDS}秒的过期时间，
+     * 过期之前相同的查询（包括翻页）都直接复用这个结果，分页在服务器端完成。
+     *
+     * @param sort      排序方式，time、votes或hot
+     * @param query     分组查询
+     * @param cursor    上一页返回的游标，读取第一页时为null
+     * @param pageSize  每页的文章数
+     * @param direction 排序方向
+     * @return 文章分页结果
+     */
+    public ArticlePage query(String sort, GroupQuery query, String cursor, int pageSize, SortDirection direction) {
+        return getPage(queryKey(sortKey(sort), query), cursor, pageSize, direction);
+    }
+
+    private String queryKey(String sortKey, GroupQuery query) {
+        if (query.isGroup()) {
+            return sortKey + query.getGroup();
+        }
+        String key = QUERY + DigestUtils.md5DigestAsHex((sortKey + query).getBytes(StandardCharsets.UTF_8));
+        Boolean hasKey = stringRedisTemplate.hasKey(key);
+        if (hasKey != null && hasKey) {
+            return key;
+        }
+        List<String> childKeys = new ArrayList<>();
+        for (GroupQuery child : query.getChildren()) {
+            childKeys.add(queryKey(sortKey, child));
+        }
+        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
+        List<String> otherKeys = childKeys.subList(1, childKeys.size());
+        // 同一篇文章在各个分组里面的分值相同，所以用MAX聚合
+        if (GroupQuery.Operator.AND == query.getOperator()) {
+            zSetOperations.intersectAndStore(childKeys.get(0), otherKeys, key, RedisZSetCommands.Aggregate.MAX);
+        } else {
+            zSetOperations.unionAndStore(childKeys.get(0), otherKeys, key, RedisZSetCommands.Aggregate.MAX);
+        }
+        stringRedisTemplate.expire(key, QUERY_TTL_SECONDS, TimeUnit.SECONDS);
+        return key;
+    }
+
+    private ArticlePage getPage(String key, String cursor, int pageSize, SortDirection direction) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive.");
+        }
+        boolean desc = SortDirection.DESC == direction;
+        List<ZSetOperations.TypedTuple<String>> tuples;
+        if (StringUtils.isEmpty(cursor)) {
+            ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
+            Set<ZSetOperations.TypedTuple<String>> first = desc
+                ? zSetOperations.reverseRangeWithScores(key, 0, pageSize - 1)
+                : zSetOperations.rangeWithScores(key, 0, pageSize - 1);
+            tuples = first == null ? new ArrayList<>() : new ArrayList<>(first);
+        } else {
+            // 分值是Double.toString的结果，不会包含冒号，文章键里面可能有冒号
+            int index = cursor.indexOf(':');
+            if (index <= 0 || index == cursor.length() - 1) {
+                throw new IllegalArgumentException("Illegal cursor: " + cursor);
+            }
+            double lastScore;
+            try {
+                lastScore = Double.parseDouble(cursor.substring(0, index));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal cursor: " + cursor, e);
+            }
+            tuples = getPageAfter(key, lastScore, cursor.substring(index + 1), pageSize, desc);
+        }
+        ArticlePage page = new ArticlePage();
+        if (tuples.isEmpty()) {
+            return page;
+        }
+        List<String> keys = new ArrayList<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            keys.add(tuple.getValue());
+        }
+        page.setArticles(getArticles(keys));
+        if (tuples.size() == pageSize) {
+            ZSetOperations.TypedTuple<String> last = tuples.get(tuples.size() - 1);
+            page.setNextCursor(last.getScore() + ":" + last.getValue());
+        }
+        return page;
+    }
+
+    /**
+     * 读取排在上一页最后一篇文章之后的一页文章。
+     * <p/>
+     * 有序集合里面分值相同的成员按成员的字节顺序排列，所以（分值，成员）唯一确定了一个位置。
+     * 上一页最后一篇文章的分值没有变化时，用脚本按它的排名在一次网络往返里面读取下一页；
+     * 否则按分值范围读取（包含这个分值），并跳过分值相同、排在它之前或者就是它的文章。
+     *
+     * @param key        有序集合
+     * @param lastScore  上一页最后一篇文章的分值
+     * @param lastMember 上一页最后一篇文章的键
+     * @param pageSize   每页的文章数
+     * @param desc       true表示分值从大到小
+     * @return 文章键和分值
+     */
+    private List<ZSetOperations.TypedTuple<String>> getPageAfter(String key, double lastScore, String lastMember,
+        int pageSize, boolean desc) {
+        @SuppressWarnings("unchecked")
+        List<String> reply = stringRedisTemplate.execute(PAGE_AFTER_SCRIPT, Collections.singletonList(key),
+            String.valueOf(lastScore), lastMember, String.valueOf(pageSize), desc ? "1" : "0");
+        List<ZSetOperations.TypedTuple<String>> tuples = new ArrayList<>(pageSize);
+        if (reply != null) {
+            for (int i = 0; i < reply.size(); i += 2) {
+                tuples.add(new DefaultTypedTuple<>(reply.get(i), Double.valueOf(reply.get(i + 1))));
+            }
+            return tuples;
+        }
         ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
-        for (Article article : articles) {
-            String id = article.getId();
-            String key = ARTICLE + id;
-            hashOperations.put(key, "id", id);
-            hashOperations.put(key, "title", article.getTitle());
-            String time = article.getTime();
-            hashOperations.put(key, "time", time);
-            String votes = article.getVotes();
-            hashOperations.put(key, "votes", votes);
-            List<String> groups = article.getGroups();
-            hashOperations.put(key, "groups", StringUtils.join(groups.toArray(new String[groups.size()]), ","));
-            zSetOperations.add(TIME, key, Double.valueOf(time));
-            zSetOperations.add(VOTES, key, Double.valueOf(votes));
-            SetOperations<String, String> setOperations = stringRedisTemplate.opsForSet();
-            for (String group : groups) {
-                setOperations.add(GROUP + group, key);
+        long offset = 0;
+        long count = pageSize + 1L;
+        while (tuples.size() < pageSize) {
+            Set<ZSetOperations.TypedTuple<String>> chunk = desc
+                ? zSetOperations.reverseRangeByScoreWithScores(key, Double.NEGATIVE_INFINITY, lastScore, offset, count)
+                : zSetOperations.rangeByScoreWithScores(key, lastScore, Double.POSITIVE_INFINITY, offset, count);
+            if (CollectionUtils.isEmpty(chunk)) {
+                break;
             }
+            for (ZSetOperations.TypedTuple<String> tuple : chunk) {
+                if (tuples.size() == pageSize) {
+                    break;
+                }
+                if (tuple.getScore() != lastScore) {
+                    tuples.add(tuple);
+                    continue;
+                }
+                int compare = compareMembers(tuple.getValue(), lastMember);
+                if (desc ? compare < 0 : compare > 0) {
+                    tuples.add(tuple);
+                }
+            }
+            if (chunk.size() < count) {
+                break;
+            }
+            offset += count;
+            count *= 2;
+        }
+        return tuples;
+    }
+
+    /**
+     * 按Redis的方式比较有序集合的成员：逐个比较UTF-8编码的无符号字节
+     */
+    private static int compareMembers(String a, String b) {
+        byte[] left = a.getBytes(StandardCharsets.UTF_8);
+        byte[] right = b.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < Math.min(left.length, right.length); i++) {
+            int compare = Integer.compare(left[i] & 0xFF, right[i] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(left.length, right.length);
+    }
+
+    public void add(List<Article> articles) {
+        add(articles.iterator(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * 流式批量导入文章，见{@link #add(Iterator, int)}。
+     *
+     * @param articles  文章流
+     * @param batchSize 每批的文章数
+     * @return 导入的文章总数
+     */
+    public long add(Stream<Article> articles, int batchSize) {
+        return add(articles.iterator(), batchSize);
+    }
+
+    /**
+     * 批量导入文章。
+     * <p/>
+     * 逐篇调用HSET、ZADD、SADD的话，每篇文章需要7次以上的网络往返。这里每篇文章的散列只用一个HMSET写入，
+     * 并且把同一批文章的散列以及时间、点赞、分组索引的更新全部放进一个流水线里面发送，
+     * 每批只需要一次网络往返。文章是从迭代器里面逐批取出的，所以导入大量文章时不需要把它们全部放在内存里。
+     * <p/>
+     * 开启DEBUG日志时，每批导入完成后会记录这一批的耗时以及吞吐量。
+     *
+     * @param articles  文章迭代器
+     * @param batchSize 每批的文章数
+     * @return 导入的文章总数
+     */
+    public long add(Iterator<Article> articles, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive.");
+        }
+        long total = 0;
+        int batchNo = 0;
+        List<Article> batch = new ArrayList<>(batchSize);
+        while (articles.hasNext()) {
+            batch.add(articles.next());
+            if (batch.size() == batchSize || !articles.hasNext()) {
+                addBatch(batch, ++batchNo);
+                total += batch.size();
+                batch.clear();
+            }
+        }
+        return total;
+    }
+
+    private void addBatch(List<Article> batch, int batchNo) {
+        long start = System.nanoTime();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            List<String> keys = new ArrayList<>(batch.size());
+            for (Article article : batch) {
+                addArticle(stringConnection, article);
+                keys.add(ARTICLE + article.getId());
+            }
+            stringConnection.publish(ArticleNearCache.CHANNEL, ArticleNearCache.invalidation(keys));
+            return null;
+        });
+        if (LOG.isDebugEnabled()) {
+            long nanos = Math.max(System.nanoTime() - start, 1L);
+            LOG.debug("Article batch {}: {} articles in {} ms, {} articles/s", batchNo, batch.size(), nanos / 1000000,
+                batch.size() * 1000000000L / nanos);
+        }
+    }
+
+    private void addArticle(StringRedisConnection connection, Article article) {
+        String id = article.getId();
+        String key = ARTICLE + id;
+        List<String> groups = article.getGroups();
+        Map<String, String> hash = new HashMap<>();
+        hash.put("id", id);
+        hash.put("title", article.getTitle());
+        hash.put("time", String.valueOf(article.getTime()));
+        hash.put("votes", String.valueOf(article.getVotes()));
+        hash.put("groups", StringUtils.join(groups, ","));
+        connection.hMSet(key, hash);
+        connection.zAdd(TIME, article.getTime(), key);
+        connection.zAdd(VOTES, article.getVotes(), key);
+        double score = article.getTime() + article.getVotes() * VOTE_SCORE;
+        connection.zAdd(SCORE, score, key);
+        for (String group : groups) {
+            connection.sAdd(GROUP + group, key);
+            connection.zAdd(TIME + group, article.getTime(), key);
+            connection.zAdd(VOTES + group, article.getVotes(), key);
+            connection.zAdd(SCORE + group, score, key);
         }
     }
 
+    /**
+     * 点赞时除了更新文章散列和全局的点赞有序集合之外，还要同步更新文章所属分组的点赞有序集合。
+     *
+     * @param id 文章ID
+     */
     public void vote(String id) {
+        incrementVotes(Collections.singletonMap(id, 1L));
+    }
+
+    /**
+     * 一次给多篇文章增加点赞数，先用一个流水线读取这些文章的发布时间和分组，
+     * 再用一个流水线更新文章散列以及全局和分组的点赞、热度有序集合。
+     * <p/>
+     * 没有发布时间的文章已经被删除或者归档，跳过它们，否则HINCRBY和ZINCRBY会重新创建只有点赞数的文章散列，
+     * 并把它加回到点赞和热度有序集合里面。
+     *
+     * @param votes 文章ID与增加的点赞数
+     */
+    public void incrementVotes(Map<String, Long> votes) {
+        if (votes.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>(votes.keySet());
+        List<Object> fields = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String id : ids) {
+                stringConnection.hMGet(ARTICLE + id, "time", "groups");
+            }
+            return null;
+        });
+        List<String> keys = new ArrayList<>(ids.size());
+        List<String> groups = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            @SuppressWarnings("unchecked")
+            List<String> values = (List<String>) fields.get(i);
+            if (values.get(0) != null) {
+                keys.add(ARTICLE + ids.get(i));
+                groups.add(values.get(1));
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                long count = votes.get(key.substring(ARTICLE.length()));
+                stringConnection.hIncrBy(key, "votes", count);
+                stringConnection.zIncrBy(VOTES, count, key);
+                stringConnection.zIncrBy(SCORE, count * VOTE_SCORE, key);
+                for (String group : splitGroups(groups.get(i))) {
+                    stringConnection.zIncrBy(VOTES + group, count, key);
+                    stringConnection.zIncrBy(SCORE + group, count * VOTE_SCORE, key);
+                }
+            }
+            stringConnection.publish(ArticleNearCache.CHANNEL, ArticleNearCache.invalidation(keys));
+            return null;
+        });
+    }
+
+    /**
+     * 用户给文章投票。
+     * <p/>
+     * 检查投票是否截止、记录已投票用户、更新文章散列以及全局和分组的点赞、热度有序集合都在一个Lua脚本里面完成，
+     * 只需要一次网络往返，而且不会出现散列和有序集合的点赞数不一致的情况。
+     * 同一个用户重复投票不会被计数，已投票用户集合会在投票截止时过期。
+     *
+     * @param id     文章ID
+     * @param userId 用户ID
+     * @return true表示投票被计数
+     */
+    public boolean vote(String id, String userId) {
         String key = ARTICLE + id;
-        HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
-        hashOperations.increment(key, "votes", 1);
-        stringRedisTemplate.opsForZSet().incrementScore(VOTES, key, 1);
+        long cutoff = SystemUtil.getNowTimetamp() - VOTE_WINDOW_SECONDS;
+        Long counted = stringRedisTemplate.execute(VOTE_SCRIPT, Arrays.asList(key, VOTED + id, VOTES, SCORE),
+            userId, String.valueOf(cutoff), String.valueOf(VOTE_WINDOW_SECONDS), String.valueOf(VOTE_SCORE),
+            ArticleNearCache.CHANNEL);
+        return counted != null && counted == 1;
     }
 
-    private List<String> getKeys(String sort, String group) {
+    /**
+     * 按发布时间从早到晚读取在指定时间之前发布的文章，用于归档。
+     * <p/>
+     * 时间有序集合里面已经没有散列的文章会被顺手从全局的时间、点赞和热度有序集合里面删除，
+     * 否则它们会一直排在最前面，归档任务每次都只能读到它们。
+     *
+     * @param cutoff 截止时间，单位秒
+     * @param limit  最多读取的文章数
+     * @return 文章，为空表示已经没有在截止时间之前发布的文章
+     */
+    @SuppressWarnings("unchecked")
+    public List<Article> getPublishedBefore(long cutoff, int limit) {
+        while (true) {
+            Set<String> keySet = stringRedisTemplate.opsForZSet().rangeByScore(TIME, Double.NEGATIVE_INFINITY, cutoff,
+                0, limit);
+            if (CollectionUtils.isEmpty(keySet)) {
+                return new ArrayList<>();
+            }
+            List<String> keys = new ArrayList<>(keySet);
+            List<Object> hashes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (String key : keys) {
+                    stringConnection.hGetAll(key);
+                }
+                return null;
+            });
+            List<Article> articles = new ArrayList<>(keys.size());
+            List<String> orphans = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                Map<String, String> entries = (Map<String, String>) hashes.get(i);
+                if (CollectionUtils.isEmpty(entries)) {
+                    orphans.add(keys.get(i));
+                } else {
+                    articles.add(hash2Article(entries));
+                }
+            }
+            if (!orphans.isEmpty()) {
+                removeOrphans(orphans);
+            }
+            // 整批都是孤立的键时继续读取下一批，每一轮至少删除一个键，所以一定会结束
+            if (!articles.isEmpty()) {
+                return articles;
+            }
+        }
+    }
+
+    private void removeOrphans(List<String> keys) {
+        String[] members = keys.toArray(new String[0]);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.zRem(TIME, members);
+            stringConnection.zRem(VOTES, members);
+            stringConnection.zRem(SCORE, members);
+            return null;
+        });
+    }
+
+    /**
+     * 用一个流水线把文章从散列、已投票用户集合以及全局和分组的所有索引里面删除。
+     *
+     * @param articles 文章
+     */
+    public void remove(List<Article> articles) {
+        if (articles.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            List<String> keys = new ArrayList<>(articles.size());
+            for (Article article : articles) {
+                String key = ARTICLE + article.getId();
+                stringConnection.zRem(TIME, key);
+                stringConnection.zRem(VOTES, key);
+                stringConnection.zRem(SCORE, key);
+                for (String group : article.getGroups()) {
+                    stringConnection.sRem(GROUP + group, key);
+                    stringConnection.zRem(TIME + group, key);
+                    stringConnection.zRem(VOTES + group, key);
+                    stringConnection.zRem(SCORE + group, key);
+                }
+                stringConnection.unlink(key, VOTED + article.getId());
+                keys.add(key);
+            }
+            stringConnection.publish(ArticleNearCache.CHANNEL, ArticleNearCache.invalidation(keys));
+            return null;
+        });
+    }
+
+    /**
+     * 以前每次读取都要对分组集合和时间/点赞有序集合执行一次ZINTERSTORE，分组越大读取越慢。
+     * 现在每个分组都有自己的时间、点赞和热度有序集合，它们在{@link #add}和{@link #vote}时增量维护，
+     * 读取只需要一次范围查询。
+     * <p/>
+     * 这个函数用于为增量维护之前就已经存在的文章重建分组索引，每个分组只需要执行一次。
+     *
+     * @param group 分组
+     */
+    public void rebuildGroupIndex(String group) {
         ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
-        String votesAndGroup = VOTES + group;
-        // Boolean hasKey = redisTemplate.hasKey(votesAndGroup);
-        // if (!hasKey) {
         String groupKey = GROUP + group;
-        String otherKeys = "time".equals(sort) ? TIME : VOTES;
-        zSetOperations.intersectAndStore(groupKey, Collections.singletonList(otherKeys), votesAndGroup,
+        zSetOperations.intersectAndStore(groupKey, Collections.singletonList(TIME), TIME + group,
             RedisZSetCommands.Aggregate.MAX);
-        //     redisTemplate.expire(votesAndGroup, 60L, TimeUnit.SECONDS);
-        // }
-        Set<String> ketSet = zSetOperations.range(votesAndGroup, 0, 10);
+        zSetOperations.intersectAndStore(groupKey, Collections.singletonList(VOTES), VOTES + group,
+            RedisZSetCommands.Aggregate.MAX);
+        zSetOperations.intersectAndStore(groupKey, Collections.singletonList(SCORE), SCORE + group,
+            RedisZSetCommands.Aggregate.MAX);
+    }
+
+    private List<String> getKeys(String sort, String group) {
+        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
+        Set<String> ketSet = zSetOperations.range(sortKey(sort) + group, 0, 10);
         List<String> keys = new ArrayList<>();
         Optional.ofNullable(ketSet).ifPresent(keys::addAll);
         return keys;
     }
 
+    /**
+     * 读取文章，开启近端缓存时先从{@link ArticleNearCache}里面读取，未命中的文章再去Redis读取并放入缓存。
+     *
+     * @param keys 文章键
+     * @return 文章，已经不存在的文章会被跳过
+     */
     private List<Article> getArticles(List<String> keys) {
-        HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
-        List<Article> articles = new ArrayList<>();
+        if (!nearCache.isEnabled()) {
+            return loadArticles(keys);
+        }
+        Map<String, Article> cached = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        Map<String, Long> generations = new HashMap<>();
+        for (String key : keys) {
+            Article article = nearCache.get(key);
+            if (article == null) {
+                misses.add(key);
+                generations.put(key, nearCache.generation(key));
+            } else {
+                cached.put(key, article);
+            }
+        }
+        for (Article article : loadArticles(misses)) {
+            String key = ARTICLE + article.getId();
+            Long generation = generations.get(key);
+            if (generation != null) {
+                nearCache.put(key, article, generation);
+            }
+            cached.put(key, article);
+        }
+        List<Article> articles = new ArrayList<>(keys.size());
         for (String key : keys) {
-            Map<String, String> entries = hashOperations.entries(key);
-            Article article = hash2Article(entries);
-            articles.add(article);
+            Optional.ofNullable(cached.get(key)).ifPresent(articles::add);
+        }
+        return articles;
+    }
+
+    /**
+     * 用流水线一次读取所有文章的散列，已经不存在的文章会被跳过。
+     *
+     * @param keys 文章键
+     * @return 文章
+     */
+    @SuppressWarnings("unchecked")
+    private List<Article> loadArticles(List<String> keys) {
+        if (keys.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Object> hashes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String key : keys) {
+                stringConnection.hGetAll(key);
+            }
+            return null;
+        });
+        List<Article> articles = new ArrayList<>(keys.size());
+        for (Object hash : hashes) {
+            Map<String, String> entries = (Map<String, String>) hash;
+            if (!CollectionUtils.isEmpty(entries)) {
+                articles.add(hash2Article(entries));
+            }
         }
         return articles;
     }
@@ -103,10 +608,25 @@ public class ArticleService {
         Article article = new Article();
         article.setId(entries.get("id"));
         article.setTitle(entries.get("title"));
-        article.setTime(entries.get("time"));
-        article.setVotes(entries.get("votes"));
-        article.setGroups(Arrays.asList(entries.get("groups").split(",")));
+        article.setTime(NumberUtils.toLong(entries.get("time")));
+        article.setVotes(NumberUtils.toLong(entries.get("votes")));
+        article.setGroups(splitGroups(entries.get("groups")));
         return article;
     }
 
+    /**
+     * @param sort 排序方式：time按发布时间，hot按热度，其他按点赞数
+     * @return 排序使用的有序集合
+     */
+    private String sortKey(String sort) {
+        if ("time".equals(sort)) {
+            return TIME;
+        }
+        return "hot".equals(sort) ? SCORE : VOTES;
+    }
+
+    private List<String> splitGroups(String groups) {
+        return StringUtils.isEmpty(groups) ? Collections.emptyList() : Arrays.asList(groups.split(","));
+    }
+
 }
@@ -0,0 +1,108 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 多个分组的组合查询，比如“java AND redis”或者“java OR (go AND redis)”。
+ *
+ * @author yukms 2019/1/24
+ */
+public final class GroupQuery {
+    private final String group;
+    private final Operator operator;
+    private final List<GroupQuery> children;
+
+    private GroupQuery(String group, Operator operator, List<GroupQuery> children) {
+        this.group = group;
+        this.operator = operator;
+        this.children = children;
+    }
+
+    public static GroupQuery group(String group) {
+        if (group == null || group.isEmpty()) {
+            throw new IllegalArgumentException("The group must not be empty.");
+        }
+        return new GroupQuery(group, null, Collections.emptyList());
+    }
+
+    public static GroupQuery and(String... groups) {
+        return and(toQueries(groups));
+    }
+
+    public static GroupQuery and(GroupQuery... queries) {
+        return new GroupQuery(null, Operator.AND, checkQueries(queries));
+    }
+
+    public static GroupQuery or(String... groups) {
+        return or(toQueries(groups));
+    }
+
+    public static GroupQuery or(GroupQuery... queries) {
+        return new GroupQuery(null, Operator.OR, checkQueries(queries));
+    }
+
+    private static GroupQuery[] toQueries(String... groups) {
+        if (groups == null) {
+            throw new IllegalArgumentException("The groups must not be empty.");
+        }
+        return Arrays.stream(groups).map(GroupQuery::group).toArray(GroupQuery[]::new);
+    }
+
+    private static List<GroupQuery> checkQueries(GroupQuery... queries) {
+        if (queries == null || queries.length == 0) {
+            throw new IllegalArgumentException("The queries must not be empty.");
+        }
+        for (GroupQuery query : queries) {
+            if (query == null) {
+                throw new IllegalArgumentException("The queries must not contain null.");
+            }
+        }
+        return Arrays.asList(queries.clone());
+    }
+
+    public boolean isGroup() {
+        return operator == null;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public List<GroupQuery> getChildren() {
+        return children;
+    }
+
+    /**
+     * 规范形式：子查询按字典序排列，所以“a AND b”和“b AND a”的规范形式相同，可以复用同一个缓存结果。
+     * 分组名放在双引号里面，并且转义了双引号和反斜杠，所以包含“ AND ”、“ OR ”或者括号的分组名不会和组合查询混淆。
+     *
+     * @return 规范形式
+     */
+    @Override
+    public String toString() {
+        if (isGroup()) {
+            return '"' + group.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+        List<String> parts = new ArrayList<>();
+        for (GroupQuery child : children) {
+            parts.add(child.toString());
+        }
+        Collections.sort(parts);
+        return parts.stream().collect(Collectors.joining(" " + operator + " ", "(", ")"));
+    }
+
+    public enum Operator {
+        /** 交集 */
+        AND,
+        /** 并集 */
+        OR
+    }
+}
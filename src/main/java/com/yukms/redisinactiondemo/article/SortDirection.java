@@ -0,0 +1,13 @@
+package com.yukms.redisinactiondemo.article;
+
+/**
+ * 文章列表的排序方向
+ *
+ * @author yukms 2019/1/7.
+ */
+public enum SortDirection {
+    /** 分值从小到大 */
+    ASC,
+    /** 分值从大到小 */
+    DESC
+}
@@ -0,0 +1,187 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 点赞缓冲（write-behind）。
+ * <p/>
+ * 流量高峰时少数热点文章每秒会收到成千上万次点赞，每次点赞都要写两次Redis。
+ * 在缓冲模式下，点赞先累加到进程内按文章ID分开的{@link LongAdder}计数器里面，
+ * 后台线程每隔一段时间把所有计数器的增量用流水线一次性写入文章散列和点赞有序集合，
+ * 热点文章的大量写入就变成了少量的批量写入。
+ * <p/>
+ * 代价是进程崩溃时还没有刷新的点赞会丢失，正常关闭时会在限定时间内做最后一次刷新。
+ * <p/>
+ * 一个刷新周期里面没有收到点赞的计数器会被删除，所以计数器的数量只和最近被点赞的文章数有关。
+ * 删除的计数器还会再保留一个刷新周期，删除之前已经取到这个计数器的点赞在下一次刷新时仍然会被写入。
+ * <p/>
+ * 缓冲模式需要用{@code article.vote-buffer.enabled}开启，没有开启时{@link #vote(String)}直接写入Redis。
+ *
+ * @author yukms 2019/1/24
+ */
+@Component
+@ConfigurationProperties("article.vote-buffer")
+public class VoteBuffer {
+    private static final Logger LOG = LoggerFactory.getLogger(VoteBuffer.class);
+    @Autowired
+    private ArticleService articleService;
+    /** 是否开启缓冲模式 */
+    private boolean enabled;
+    /** 刷新间隔，单位毫秒 */
+    private long flushIntervalMillis = 100;
+    /** 关闭时最后一次刷新的最长等待时间，单位毫秒 */
+    private long shutdownTimeoutMillis = 5000;
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    /** 上一次刷新时删除的计数器 */
+    private Map<String, LongAdder> retired = new HashMap<>();
+    /** 进入缓冲的点赞数 */
+    private final LongAdder bufferedVotes = new LongAdder();
+    /** 已经写入Redis的点赞数 */
+    private final LongAdder flushedVotes = new LongAdder();
+    private ScheduledExecutorService flusher;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("vote-buffer-flusher"));
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 关闭时停止定时刷新，再把剩余的点赞刷新到Redis，最多等待{@code shutdownTimeoutMillis}毫秒。
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        flusher.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        Thread finalFlush = new Thread(this::flushQuietly, "vote-buffer-final-flush");
+        finalFlush.setDaemon(true);
+        finalFlush.start();
+        finalFlush.join(shutdownTimeoutMillis);
+    }
+
+    /**
+     * 点赞。开启缓冲模式时只在内存里累加，否则直接写入Redis
+     *
+     * @param id 文章ID
+     */
+    public void vote(String id) {
+        if (!enabled) {
+            articleService.vote(id);
+            return;
+        }
+        counters.computeIfAbsent(id, key -> new LongAdder()).increment();
+        bufferedVotes.increment();
+    }
+
+    /**
+     * 把所有计数器的增量写入Redis。如果写入失败，增量会被加回计数器，等待下一次刷新。
+     *
+     * @return 这次写入的点赞数
+     */
+    public synchronized long flush() {
+        Map<String, Long> votes = new HashMap<>();
+        retired.forEach((id, adder) -> addVotes(votes, id, adder.sumThenReset()));
+        Map<String, LongAdder> idle = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            long count = entry.getValue().sumThenReset();
+            if (count > 0) {
+                addVotes(votes, entry.getKey(), count);
+            } else if (counters.remove(entry.getKey(), entry.getValue())) {
+                idle.put(entry.getKey(), entry.getValue());
+            }
+        }
+        retired = idle;
+        long total = 0;
+        for (long count : votes.values()) {
+            total += count;
+        }
+        if (votes.isEmpty()) {
+            return 0;
+        }
+        try {
+            articleService.incrementVotes(votes);
+        } catch (RuntimeException e) {
+            votes.forEach((id, count) -> counters.computeIfAbsent(id, key -> new LongAdder()).add(count));
+            throw e;
+        }
+        flushedVotes.add(total);
+        return total;
+    }
+
+    private static void addVotes(Map<String, Long> votes, String id, long count) {
+        if (count > 0) {
+            votes.merge(id, count, Long::sum);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // 增量已经加回计数器，下一次再刷新
+            LOG.warn("Failed to flush votes", e);
+        }
+    }
+
+    /**
+     * @return 计数器的数量
+     */
+    public int getCounters() {
+        return counters.size();
+    }
+
+    public long getBufferedVotes() {
+        return bufferedVotes.sum();
+    }
+
+    public long getFlushedVotes() {
+        return flushedVotes.sum();
+    }
+
+    /**
+     * @return 还没有写入Redis的点赞数
+     */
+    public long getPendingVotes() {
+        return bufferedVotes.sum() - flushedVotes.sum();
+    }
+}
@@ -9,8 +9,9 @@ import java.util.List;
 public class Article {
     private String id;
     private String title;
-    private String time;
-    private String votes;
+    /** 发布时间，单位秒 */
+    private long time;
+    private long votes;
     private List<String> groups = new ArrayList<>();
 
     public List<String> getGroups() {
@@ -37,19 +38,19 @@ public class Article {
         this.title = title;
     }
 
-    public String getTime() {
+    public long getTime() {
         return time;
     }
 
-    public void setTime(String time) {
+    public void setTime(long time) {
         this.time = time;
     }
 
-    public String getVotes() {
+    public long getVotes() {
         return votes;
     }
 
-    public void setVotes(String votes) {
+    public void setVotes(long votes) {
         this.votes = votes;
     }
 }
@@ -0,0 +1,31 @@
+package com.yukms.redisinactiondemo.article.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文章分页结果
+ *
+ * @author yukms 2019/1/7.
+ */
+public class ArticlePage {
+    private List<Article> articles = new ArrayList<>();
+    /** 下一页的游标，为null表示没有下一页 */
+    private String nextCursor;
+
+    public List<Article> getArticles() {
+        return articles;
+    }
+
+    public void setArticles(List<Article> articles) {
+        this.articles = articles;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -0,0 +1,30 @@
+package com.yukms.redisinactiondemo.common.config;
+
+import com.yukms.redisinactiondemo.fakewebretailer.PageCacheFilter;
+import com.yukms.redisinactiondemo.fakewebretailer.PageCacheService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 注册页面缓存过滤器，{@code fake.web.retailer.page-cache.filter-enabled=true}时开启，
+ * 只拦截{@code fake.web.retailer.page-cache.url-patterns}指定的路径。
+ * 缓存键不区分用户，所以没有默认路径，必须明确列出和用户无关的页面，比如{@code /item/*}。
+ *
+ * @author yukms 2019/1/25
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "fake.web.retailer.page-cache", name = "filter-enabled", havingValue = "true")
+public class PageCacheFilterConfig {
+
+    @Bean
+    public FilterRegistrationBean<PageCacheFilter> pageCacheFilter(PageCacheService pageCacheService,
+        @Value("${fake.web.retailer.page-cache.url-patterns}") String[] urlPatterns) {
+        FilterRegistrationBean<PageCacheFilter> registration = new FilterRegistrationBean<>(
+            new PageCacheFilter(pageCacheService));
+        registration.addUrlPatterns(urlPatterns);
+        return registration;
+    }
+}
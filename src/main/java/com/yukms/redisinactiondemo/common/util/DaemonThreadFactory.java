@@ -0,0 +1,30 @@
+package com.yukms.redisinactiondemo.common.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 创建守护线程的线程工厂，线程名是{@code 前缀-序号}。
+ * <p/>
+ * 后台任务的线程都是守护线程，不会阻止JVM退出，由各自的{@code @PreDestroy}负责停止。
+ *
+ * @author yukms 2019/1/25
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger threadNo = new AtomicInteger();
+
+    /**
+     * @param prefix 线程名前缀
+     */
+    public DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + threadNo.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,140 @@
+package com.yukms.redisinactiondemo.common.util;
+
+/**
+ * long到int的计数散列表。
+ * <p/>
+ * 开放寻址、线性探测，键和值都直接保存在基本类型数组里面，
+ * 没有{@code HashMap<Long, Integer>}的装箱和Entry对象，统计上千万个计数时内存和GC压力小很多。
+ * 值为0的位置表示空位，计数可以增加也可以减少，变成0时这个键会被删除。非线程安全。
+ *
+ * @author yukms 2019/1/25
+ */
+public class LongIntHashMap {
+    private static final float LOAD_FACTOR = 0.5F;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize 预计的键数量
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 2) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param key   键
+     * @param delta 增加的数量，负数表示减少，不能为0
+     */
+    public void add(long key, int delta) {
+        if (delta == 0) {
+            throw new IllegalArgumentException("delta must not be zero");
+        }
+        int index = indexOf(key);
+        if (values[index] == 0) {
+            keys[index] = key;
+            if (++size > keys.length * LOAD_FACTOR) {
+                values[index] = delta;
+                resize();
+                return;
+            }
+        }
+        values[index] += delta;
+        if (values[index] == 0) {
+            removeAt(index);
+        }
+    }
+
+    /**
+     * @param key 键
+     * @return 计数，不存在时为0
+     */
+    public int get(long key) {
+        return values[indexOf(key)];
+    }
+
+    /**
+     * 把另一个散列表的计数加到这个散列表里面
+     *
+     * @param other 另一个散列表
+     */
+    public void addAll(LongIntHashMap other) {
+        other.forEach(this::add);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param consumer 依次接收每个键和计数
+     */
+    public void forEach(LongIntConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private int indexOf(long key) {
+        int index = slot(key);
+        while (values[index] != 0 && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 33) & mask;
+    }
+
+    /**
+     * 删除一个键，并把后面同一段连续位置里面的键往前移，保证线性探测仍然能找到它们
+     */
+    private void removeAt(int index) {
+        size--;
+        int hole = index;
+        for (int i = (index + 1) & mask; values[i] != 0; i = (i + 1) & mask) {
+            // 空位在键的理想位置和当前位置之间时，这个键可以移到空位上
+            if (((i - slot(keys[i])) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = 0;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * 接收键和计数
+     */
+    @FunctionalInterface
+    public interface LongIntConsumer {
+        void accept(long key, int value);
+    }
+}
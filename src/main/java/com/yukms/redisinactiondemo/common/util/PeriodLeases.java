@@ -0,0 +1,35 @@
+package com.yukms.redisinactiondemo.common.util;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 按周期抢占的租约。
+ * <p/>
+ * 所有节点都会定时运行同一个任务，但是每个周期只需要执行一次：用SET NX抢占这个周期的租约，
+ * 键是前缀加上周期序号，一个周期之后过期，抢到的节点执行，其他节点直接返回。
+ * 周期按墙上时间划分，节点之间的时钟偏差小于一个周期时，同一个周期最多只有一个节点执行。
+ *
+ * @author yukms 2019/1/25
+ */
+public final class PeriodLeases {
+    /** 本节点的标识，作为租约的值，方便查看是哪个节点执行的 */
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    private PeriodLeases() {
+    }
+
+    /**
+     * @param stringRedisTemplate redis模板
+     * @param keyPrefix           租约键的前缀，后面加上周期序号
+     * @param periodSeconds       周期，单位秒
+     * @return true表示抢到了当前周期的租约
+     */
+    public static boolean tryAcquire(StringRedisTemplate stringRedisTemplate, String keyPrefix, long periodSeconds) {
+        long period = SystemUtil.getNowTimetamp() / periodSeconds;
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(keyPrefix + period, NODE_ID,
+            periodSeconds, TimeUnit.SECONDS));
+    }
+}
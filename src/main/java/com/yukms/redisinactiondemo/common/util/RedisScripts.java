@@ -0,0 +1,33 @@
+package com.yukms.redisinactiondemo.common.util;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+/**
+ * Lua脚本工具。
+ * <p/>
+ * 脚本的SHA1会被缓存，RedisTemplate执行脚本时先使用EVALSHA，只有服务器上没有缓存这个脚本时才会退回到EVAL。
+ *
+ * @author yukms 2019/1/24
+ */
+public final class RedisScripts {
+    private RedisScripts() {
+    }
+
+    /**
+     * 从classpath加载脚本
+     *
+     * @param path       脚本路径
+     * @param resultType 返回值类型
+     * @param <T>        返回值类型
+     * @return 脚本
+     */
+    public static <T> RedisScript<T> load(String path, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+}
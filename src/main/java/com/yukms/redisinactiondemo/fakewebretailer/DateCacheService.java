@@ -1,14 +1,32 @@
 package com.yukms.redisinactiondemo.fakewebretailer;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import com.alibaba.fastjson.JSON;
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import com.yukms.redisinactiondemo.common.util.RedisScripts;
 import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
@@ -38,7 +56,9 @@ import org.springframework.util.CollectionUtils;
  * @author yukms 2019/1/10.
  */
 @Service
+@ConfigurationProperties("fake.web.retailer.row-cache")
 public class DateCacheService {
+    private static final Logger LOG = LoggerFactory.getLogger(DateCacheService.class);
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
     /** 延迟值 */
@@ -47,6 +67,46 @@ public class DateCacheService {
     private static final String SCHEDULE = "schedule:";
     /** 缓存 */
     private static final String INV = "inv:";
+    private static final RedisScript<List> CLAIM_ROWS_SCRIPT = RedisScripts.load("script/claim_rows.lua",
+        List.class);
+    /** 每批最多领取的行数 */
+    private int batchSize = 100;
+    /** 缓存线程数，大于0时启动后自动开始缓存 */
+    private int workers;
+    /** 从数据库并行读取数据行的线程数 */
+    private int loadThreads = 4;
+    /** 领取超时时间，单位秒，超过这个时间还没有写回的数据行会被重新领取 */
+    private long claimTimeoutSeconds = 30;
+    /** 没有到期的数据行时的休眠时间，单位毫秒 */
+    private long pollMillis = 50;
+    /** 读取失败的数据行重试的间隔，单位秒，延迟值更小时按延迟值重试 */
+    private long retrySeconds = 5;
+    private ExecutorService rowLoaders;
+    private ExecutorService cacheWorkers;
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public void setLoadThreads(int loadThreads) {
+        this.loadThreads = loadThreads;
+    }
+
+    public void setClaimTimeoutSeconds(long claimTimeoutSeconds) {
+        this.claimTimeoutSeconds = claimTimeoutSeconds;
+    }
+
+    public void setPollMillis(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    public void setRetrySeconds(long retrySeconds) {
+        this.retrySeconds = retrySeconds;
+    }
 
     /**
      * 为了让缓存函数定期地缓存数据行，程序首先要将行ID和给定的延迟值添加到延迟有序集合里面，
@@ -69,44 +129,126 @@ public class DateCacheService {
         zSetOperations.add(SCHEDULE, rowId, SystemUtil.getNowTimetamp());
     }
 
+    @PostConstruct
+    public void init() {
+        rowLoaders = Executors.newFixedThreadPool(loadThreads, new DaemonThreadFactory("row-loader"));
+        if (workers > 0) {
+            cacheWorkers = Executors.newFixedThreadPool(workers, new DaemonThreadFactory("row-cache"));
+            for (int i = 0; i < workers; i++) {
+                cacheWorkers.execute(() -> {
+                    try {
+                        cacheRows();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (cacheWorkers != null) {
+            cacheWorkers.shutdownNow();
+        }
+        rowLoaders.shutdownNow();
+    }
+
     /**
-     * 负责缓存数据行的函数会尝试读取调度有序集合的第一个元素以及该元素的分值，
-     * 如果调度有序集合没有包含任何元素，或者分值存储的时间戳所制定的时间尚未来临，
-     * 那么函数会先休眠50毫秒，然后再重新进行检查。
-     * <p/>
-     * 当缓存函数发现一个需要立即进行更新的数据行时，缓存函数会检查这个数据行的延迟值：
-     * 如果数据行的延迟值小于或者等于0，那么缓存函数会从延迟有序集合和调度有序集合里面移除这个数据行的ID，
-     * 并从缓存里面删除这个数据行以后的缓存数据，然后再重新进行检查；
-     * 对于延迟大于0的数据行来说，缓存函数会从数据库里面取出这些行，将它们编码为JSON格式并存储到Redis里面，
-     * 然后更新这些行的调度时间。
+     * 负责缓存数据行的函数会不断地领取并缓存到期的数据行，没有到期的数据行时先休眠{@code poll-millis}毫秒，
+     * 然后再重新进行检查。开启{@code workers}之后由多个后台线程执行，多个节点也可以同时执行。
      */
     public void cacheRows() throws InterruptedException {
-        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
-        ValueOperations<String, String> valueOperations = stringRedisTemplate.opsForValue();
         for (; ; ) {
-            Set<String> rowIds = zSetOperations.range(SCHEDULE, 0, 0);
-            if (CollectionUtils.isEmpty(rowIds)) {
-                Thread.sleep(50);
-                continue;
+            int cached;
+            try {
+                cached = cacheRowBatch();
+            } catch (RuntimeException e) {
+                // 领取的数据行会在领取超时之后被重新领取
+                LOG.warn("Failed to cache rows", e);
+                cached = 0;
+            }
+            if (cached == 0) {
+                Thread.sleep(pollMillis);
+            }
+        }
+    }
+
+    /**
+     * 缓存一批到期的数据行。
+     * <p/>
+     * 先用脚本一次取出最多{@code batch-size}个到期的数据行，并把它们的调度时间推迟到领取超时之后，
+     * 这样多个缓存线程或者节点领取到的数据行不会重复。脚本同时检查延迟值：
+     * 延迟值小于或者等于0的数据行会从延迟有序集合和调度有序集合里面移除。
+     * <p/>
+     * 然后并行地从数据库里面取出领取的数据行，最后用一个流水线写入所有数据行的JSON、
+     * 更新这些行的调度时间，并删除取消调度的数据行的缓存。
+     * 读取失败的数据行保留原来的缓存，{@code retry-seconds}秒之后重试，不影响同一批的其他数据行。
+     * 如果缓存线程在领取之后崩溃，这些数据行会在领取超时之后被重新领取。
+     *
+     * @return 处理的数据行数
+     */
+    @SuppressWarnings("unchecked")
+    public int cacheRowBatch() {
+        long now = SystemUtil.getNowTimetamp();
+        List<List<String>> result = stringRedisTemplate.execute(CLAIM_ROWS_SCRIPT, Arrays.asList(SCHEDULE, DELAY),
+            String.valueOf(now), String.valueOf(batchSize), String.valueOf(claimTimeoutSeconds));
+        if (CollectionUtils.isEmpty(result)) {
+            return 0;
+        }
+        List<String> claimed = result.get(0);
+        List<String> removed = result.get(1);
+        if (claimed.isEmpty() && removed.isEmpty()) {
+            return 0;
+        }
+        Map<String, CompletableFuture<Row>> rows = new LinkedHashMap<>();
+        for (int i = 0; i < claimed.size(); i += 2) {
+            String rowId = claimed.get(i);
+            rows.put(rowId, CompletableFuture.supplyAsync(() -> queryRow(rowId), rowLoaders));
+        }
+        Map<String, String> values = new HashMap<>();
+        Set<String> failed = new HashSet<>();
+        rows.forEach((rowId, row) -> {
+            try {
+                values.put(INV + rowId, JSON.toJSONString(row.join()));
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to query row {}", rowId, e);
+                failed.add(rowId);
             }
-            String rowId = new ArrayList<>(rowIds).get(0);
-            Double scheduleScore = zSetOperations.score(SCHEDULE, rowId);
-            long now = SystemUtil.getNowTimetamp();
-            if (null == scheduleScore || scheduleScore > now) {
-                Thread.sleep(50);
-                continue;
+        });
+        long cachedAt = SystemUtil.getNowTimetamp();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            if (!values.isEmpty()) {
+                stringConnection.mSetString(values);
             }
-            Double delayScore = zSetOperations.score(DELAY, rowId);
-            if (null == delayScore || delayScore <= 0) {
-                zSetOperations.remove(DELAY, rowId);
-                zSetOperations.remove(SCHEDULE, rowId);
-                stringRedisTemplate.delete(INV + rowId);
-                continue;
+            for (int i = 0; i < claimed.size(); i += 2) {
+                String rowId = claimed.get(i);
+                double delay = Double.parseDouble(claimed.get(i + 1));
+                if (failed.contains(rowId)) {
+                    delay = Math.min(delay, retrySeconds);
+                }
+                stringConnection.zAdd(SCHEDULE, cachedAt + delay, rowId);
             }
-            Row row = queryRow(rowId);
-            zSetOperations.add(SCHEDULE, rowId, now + delayScore);
-            valueOperations.set(INV + rowId, JSON.toJSONString(row));
+            if (!removed.isEmpty()) {
+                stringConnection.unlink(removed.stream().map(rowId -> INV + rowId).toArray(String[]::new));
+            }
+            return null;
+        });
+        return claimed.size() / 2 + removed.size();
+    }
+
+    /**
+     * @return 最早到期的数据行已经超过调度时间多少秒，没有到期的数据行时为0
+     */
+    public long getRefreshLagSeconds() {
+        Set<ZSetOperations.TypedTuple<String>> head = stringRedisTemplate.opsForZSet()
+            .rangeWithScores(SCHEDULE, 0, 0);
+        if (CollectionUtils.isEmpty(head)) {
+            return 0;
         }
+        Double score = head.iterator().next().getScore();
+        return score == null ? 0 : Math.max(SystemUtil.getNowTimetamp() - score.longValue(), 0);
     }
 
     public Row queryRow(String rowId) {
@@ -0,0 +1,212 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+/**
+ * 自动缓存页面的过滤器，
+ * 不再需要每个控制器手动调用{@link PageCacheService#cacheRequest(HttpServletRequest, java.util.function.Function)}。
+ * <p/>
+ * 页面缓存时会记录页面内容的MD5作为ETag，响应都带上ETag头。
+ * 浏览器带着If-None-Match请求时才读取很小的元数据，ETag相同并且页面没有变旧时直接返回304，
+ * 不从Redis读取页面内容，也不发送页面内容；页面已经变旧时先重新生成，ETag仍然相同时再返回304。
+ * <p/>
+ * 缓存键不包含Cookie和会话，所以只缓存和用户无关的页面：带有登录用户、会话或者Authorization头的请求不缓存，
+ * 状态码不是200、带有Set-Cookie或者{@code Cache-Control: private/no-store}的响应也不缓存。
+ * 页面由过滤器链生成，请求结束之后没法再生成，所以不在后台刷新旧页面。
+ * <p/>
+ * 控制器设置的响应头（比如Cache-Control、Vary、Last-Modified）和页面一起缓存，命中时原样返回；
+ * Content-Length、ETag、Date等由过滤器或者容器生成的响应头不缓存。只读取元数据返回的304只带ETag头。
+ *
+ * @author yukms 2019/1/25
+ */
+public class PageCacheFilter extends OncePerRequestFilter {
+    /** 不和页面一起缓存的响应头 */
+    private static final Set<String> UNCACHED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        UNCACHED_HEADERS.addAll(Arrays.asList("Content-Type", "Content-Length", "ETag", "Date", "Set-Cookie",
+            "Transfer-Encoding", "Connection", "Keep-Alive"));
+    }
+
+    private final PageCacheService pageCacheService;
+
+    public PageCacheFilter(PageCacheService pageCacheService) {
+        this.pageCacheService = pageCacheService;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException {
+        if (isPrivate(request) || pageCacheService.canNotCache(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = pageCacheService.getETag(request);
+            if (etag != null && matches(ifNoneMatch, etag)) {
+                notModified(response, etag);
+                return;
+            }
+        }
+        PageCacheService.Page page;
+        try {
+            page = pageCacheService.cacheRequest(request, req -> render(req, response, chain));
+        } catch (NotCacheableException e) {
+            // 生成页面的就是当前请求，把原来的响应发出去
+            e.response.copyBodyToResponse();
+            return;
+        } catch (RenderException e) {
+            throw e.unwrap();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RenderException) {
+                throw ((RenderException) e.getCause()).unwrap();
+            }
+            if (!(e.getCause() instanceof NotCacheableException)) {
+                throw e;
+            }
+            // 同时等待的其他请求没有响应内容，自己再处理一次
+            chain.doFilter(request, response);
+            return;
+        }
+        page.getHeaders().forEach(response::setHeader);
+        if (matches(ifNoneMatch, page.getETag())) {
+            notModified(response, page.getETag());
+            return;
+        }
+        response.setHeader("ETag", page.getETag());
+        if (page.getContentType() != null) {
+            response.setContentType(page.getContentType());
+        }
+        response.setContentLength(page.getBody().length);
+        response.getOutputStream().write(page.getBody());
+    }
+
+    private PageCacheService.Page render(HttpServletRequest request, HttpServletResponse response, FilterChain chain) {
+        ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        try {
+            chain.doFilter(request, wrapper);
+        } catch (IOException | ServletException e) {
+            throw new RenderException(e);
+        }
+        if (wrapper.getStatus() != HttpServletResponse.SC_OK || isPrivate(wrapper)) {
+            throw new NotCacheableException(wrapper);
+        }
+        return new PageCacheService.Page(wrapper.getContentType(), cachedHeaders(wrapper),
+            wrapper.getContentAsByteArray());
+    }
+
+    /**
+     * @return 需要和页面一起缓存的响应头，同名的多个值用逗号合并
+     */
+    private static Map<String, String> cachedHeaders(HttpServletResponse response) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String name : response.getHeaderNames()) {
+            Collection<String> values = response.getHeaders(name);
+            if (!UNCACHED_HEADERS.contains(name) && !values.isEmpty()) {
+                headers.put(name, String.join(", ", values));
+            }
+        }
+        return headers;
+    }
+
+    private static void notModified(HttpServletResponse response, String etag) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        response.setHeader("ETag", etag);
+    }
+
+    /**
+     * @return true表示请求属于某个用户，页面可能因人而异
+     */
+    private static boolean isPrivate(HttpServletRequest request) {
+        return request.getUserPrincipal() != null || request.getSession(false) != null ||
+            request.getHeader("Authorization") != null;
+    }
+
+    /**
+     * @return true表示响应设置了Cookie或者禁止共享缓存
+     */
+    private static boolean isPrivate(HttpServletResponse response) {
+        if (response.containsHeader("Set-Cookie")) {
+            return true;
+        }
+        for (String cacheControl : response.getHeaders("Cache-Control")) {
+            String lower = cacheControl.toLowerCase(Locale.ROOT);
+            if (lower.contains("private") || lower.contains("no-store")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ifNoneMatch If-None-Match请求头，可能包含多个用逗号分隔的ETag
+     * @param etag        当前页面的ETag
+     * @return true表示浏览器缓存的页面和当前页面相同
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.startsWith("W/")) {
+                trimmed = trimmed.substring(2);
+            }
+            if ("*".equals(trimmed) || etag.equals(trimmed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 过滤器链抛出的受检异常，穿过页面缓存之后原样抛出
+     */
+    private static class RenderException extends RuntimeException {
+        private static final long serialVersionUID = -2215878226907165722L;
+
+        RenderException(Exception cause) {
+            super(cause);
+        }
+
+        /**
+         * @return 过滤器链抛出的ServletException，是IOException时直接抛出
+         */
+        ServletException unwrap() throws IOException {
+            if (getCause() instanceof IOException) {
+                throw (IOException) getCause();
+            }
+            return (ServletException) getCause();
+        }
+    }
+
+    /**
+     * 响应状态码不是200或者是私有的，不能缓存
+     */
+    private static class NotCacheableException extends RuntimeException {
+        private static final long serialVersionUID = 4310932386474357140L;
+        private final transient ContentCachingResponseWrapper response;
+
+        NotCacheableException(ContentCachingResponseWrapper response) {
+            super(null, null, false, false);
+            this.response = response;
+        }
+    }
+}
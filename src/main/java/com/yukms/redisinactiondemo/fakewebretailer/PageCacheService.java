@@ -1,15 +1,46 @@
 package com.yukms.redisinactiondemo.fakewebretailer;
 
-import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import com.yukms.redisinactiondemo.common.util.LocalCache;
+import com.yukms.redisinactiondemo.common.util.RedisScripts;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 
 /**
  * 对于每天很少改变的页面，这些页面的内容实际上并不需要动态地生成，
@@ -17,20 +48,159 @@ import org.springframework.stereotype.Service;
  * 可以降低网站处理相同负载所需的服务器数量，并让网站的速度变得更快。
  * <p/>
  * 商品的数量太多，贸然地缓存所有商品页面将耗尽整个网站的内存，所以只对其中10000件商品进行缓存。
+ * <p/>
+ * 页面用{@link PageCodec}编码成字节保存，较大的页面会被压缩，比JDK序列化节省内存和网络流量。
  *
  * @author yukms 2019/1/10.
  */
 @Service
+@ConfigurationProperties("fake.web.retailer.page-cache")
 public class PageCacheService {
+    private static final Logger LOG = LoggerFactory.getLogger(PageCacheService.class);
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
     @Autowired
-    private RedisTemplate redisTemplate;
+    private TokenCookieService tokenCookieService;
     /** 页面缓存 */
     private static final String CACHE = "cache:";
+    /** 页面元数据，{@code 变旧的时间 ETag}，后面加上请求的散列值 */
+    private static final String CACHE_META = "cache:meta:";
+    /** 商品ID参数 */
+    private static final String ITEM_PARAM = "item";
+    /** 动态页面参数，带有这个参数的请求不缓存 */
+    private static final String DYNAMIC_PARAM = "_";
+    /** 不影响页面内容的跟踪参数，除此之外还有所有utm_开头的参数 */
+    private static final Set<String> TRACKING_PARAMS = Collections
+        .unmodifiableSet(new HashSet<>(Arrays.asList("gclid", "fbclid")));
+    private static final String TRACKING_PARAM_PREFIX = "utm_";
+    /** 生成页面的锁，后面加上请求的散列值 */
+    private static final String LOCK = "lock:cache:";
+    private static final RedisScript<Long> RELEASE_LOCK_SCRIPT = RedisScripts.load("script/release_lock.lua",
+        Long.class);
+    /** 页面变旧的时间，单位秒 */
+    private long ttlSeconds = 5 * 60;
+    /** 页面变旧之后还能继续返回的时间，单位秒，0表示变旧就删除 */
+    private long staleTtlSeconds;
+    /** XFetch提前刷新的系数，越大越早刷新，0表示不提前刷新 */
+    private double xfetchBeta;
+    /** 后台刷新页面的线程数 */
+    private int refreshThreads = 2;
+    /** 后台刷新页面的队列长度 */
+    private int refreshQueueSize = 100;
+    /** 页面内容超过这个字节数时压缩 */
+    private int compressThreshold = 1024;
+    /** 是否开启进程内的一级缓存 */
+    private boolean l1Enabled;
+    /** 一级缓存最多缓存的页面数 */
+    private int l1MaxSize = 1000;
+    /** 一级缓存的缓存时间，单位毫秒 */
+    private long l1TtlMillis = 1000;
+    /** 是否用分布式锁保证多个节点只生成一次页面 */
+    private boolean lockEnabled;
+    /** 锁的过期时间，单位毫秒，应该比生成一个页面的时间长 */
+    private long lockTimeoutMillis = 3000;
+    /** 没有抢到锁时最多等待的时间，单位毫秒 */
+    private long lockWaitMillis = 1000;
+    /** 没有抢到锁时查询Redis的间隔，单位毫秒 */
+    private long lockPollMillis = 50;
+    private LocalCache<String, Page> l1;
+    private ThreadPoolExecutor refreshExecutor;
+    /** 正在后台刷新的页面 */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    /** 正在加载的页面 */
+    private final ConcurrentMap<String, CompletableFuture<Page>> inflight = new ConcurrentHashMap<>();
+    private final LongAdder l2Hits = new LongAdder();
+    private final LongAdder l2Misses = new LongAdder();
+    private final LongAdder singleFlightWaits = new LongAdder();
+    private final LongAdder renders = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder droppedRefreshes = new LongAdder();
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public void setStaleTtlSeconds(long staleTtlSeconds) {
+        this.staleTtlSeconds = staleTtlSeconds;
+    }
+
+    public void setXfetchBeta(double xfetchBeta) {
+        this.xfetchBeta = xfetchBeta;
+    }
+
+    public void setRefreshThreads(int refreshThreads) {
+        this.refreshThreads = refreshThreads;
+    }
+
+    public void setRefreshQueueSize(int refreshQueueSize) {
+        this.refreshQueueSize = refreshQueueSize;
+    }
+
+    public void setL1Enabled(boolean l1Enabled) {
+        this.l1Enabled = l1Enabled;
+    }
+
+    public void setL1MaxSize(int l1MaxSize) {
+        this.l1MaxSize = l1MaxSize;
+    }
+
+    public void setL1TtlMillis(long l1TtlMillis) {
+        this.l1TtlMillis = l1TtlMillis;
+    }
+
+    public void setLockEnabled(boolean lockEnabled) {
+        this.lockEnabled = lockEnabled;
+    }
+
+    public void setLockTimeoutMillis(long lockTimeoutMillis) {
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    public void setLockWaitMillis(long lockWaitMillis) {
+        this.lockWaitMillis = lockWaitMillis;
+    }
+
+    public void setLockPollMillis(long lockPollMillis) {
+        this.lockPollMillis = lockPollMillis;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (l1Enabled) {
+            l1 = new LocalCache<>(l1MaxSize, l1TtlMillis);
+        }
+        refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(refreshQueueSize), new DaemonThreadFactory("page-refresh"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        refreshExecutor.shutdownNow();
+    }
 
     /**
      * 对于一个不能被缓存的请求，函数将直接生成并返回页面；而对于可以被缓存的请求，
      * 函数首先会尝试从缓存里面取出并返回被缓存的页面，如果缓存页面不存在，
      * 那么函数会生成页面并将其缓存在Redis里面5分钟，最后再将页面返回给函数调用者。
+     * <p/>
+     * 热门页面过期的瞬间会有大量请求同时未命中，为了只生成一次页面：
+     * <ol>
+     * <li>开启本地缓存（{@code l1-enabled}）之后，先查进程内的一级缓存，再查Redis；</li>
+     * <li>同一个进程里同一个页面同时只有一个线程查询Redis和生成页面，其他线程等待它的结果；</li>
+     * <li>开启分布式锁（{@code lock-enabled}）之后，多个节点之间也只有抢到锁的节点生成页面，
+     * 其他节点每隔{@code lock-poll-millis}毫秒查询一次Redis，等待超过{@code lock-wait-millis}毫秒之后自己生成。</li>
+     * </ol>
+     * <p/>
+     * 页面在{@code ttl-seconds}秒之后变旧，再过{@code stale-ttl-seconds}秒才从Redis里删除。
+     * callback需要原来的请求对象，请求结束之后容器会回收它，所以旧页面只能在当前线程重新生成；
+     * 需要后台刷新时请使用{@link #cacheRequest(HttpServletRequest, Supplier)}。
      *
      * @param request http请求
      * @param callback 真实的请求处理逻辑
@@ -40,25 +210,413 @@ public class PageCacheService {
         if (canNotCache(request)) {
             return callback.apply(request);
         }
-        String pageKey = CACHE + hashRequest(request);
-        ValueOperations<String, Page> valueOperations = redisTemplate.opsForValue();
-        Page page = valueOperations.get(pageKey);
-        if (null == page) {
-            page = callback.apply(request);
-            valueOperations.set(pageKey, page, 5L, TimeUnit.MINUTES);
+        return cacheRequest(hashRequest(request), () -> callback.apply(request), false);
+    }
+
+    /**
+     * 和{@link #cacheRequest(HttpServletRequest, Function)}一样，但是旧页面会立即返回，同时由后台线程重新生成一次。
+     * 开启提前刷新（{@code xfetch-beta}大于0）之后，页面还没变旧时也会按XFetch算法以一定概率提前刷新：
+     * 越接近过期、生成页面越慢，提前刷新的概率越大，热门页面在变旧之前就会被刷新。
+     * <p/>
+     * 后台刷新在响应返回之后执行，renderer不能再读取请求对象，生成页面需要的参数要在调用之前从请求里面取出来。
+     *
+     * @param request  http请求，只用来计算缓存键
+     * @param renderer 生成页面，不依赖请求对象
+     * @return 页面
+     */
+    public Page cacheRequest(HttpServletRequest request, Supplier<Page> renderer) {
+        if (canNotCache(request)) {
+            return renderer.get();
+        }
+        return cacheRequest(hashRequest(request), renderer, true);
+    }
+
+    private Page cacheRequest(String hash, Supplier<Page> renderer, boolean backgroundRefresh) {
+        if (l1 != null) {
+            Page page = l1.get(hash);
+            if (page != null) {
+                return page;
+            }
+        }
+        CompletableFuture<Page> loading = new CompletableFuture<>();
+        CompletableFuture<Page> existing = inflight.putIfAbsent(hash, loading);
+        if (existing != null) {
+            singleFlightWaits.increment();
+            return existing.join();
+        }
+        try {
+            Page page = load(hash, renderer, backgroundRefresh);
+            if (l1 != null) {
+                l1.put(hash, page);
+            }
+            loading.complete(page);
+            return page;
+        } catch (RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(hash, loading);
+        }
+    }
+
+    private Page load(String hash, Supplier<Page> renderer, boolean backgroundRefresh) {
+        byte[] pageKey = (CACHE + hash).getBytes(StandardCharsets.UTF_8);
+        CachedPage cached = get(pageKey);
+        if (cached == null) {
+            l2Misses.increment();
+        } else {
+            l2Hits.increment();
+            if (!shouldRefresh(cached)) {
+                return cached.page;
+            }
+            if (backgroundRefresh) {
+                if (cached.isStale()) {
+                    staleHits.increment();
+                } else {
+                    earlyRefreshes.increment();
+                }
+                refreshInBackground(hash, renderer);
+                return cached.page;
+            }
+            if (!cached.isStale()) {
+                // 不在后台刷新时不提前刷新
+                return cached.page;
+            }
+        }
+        if (!lockEnabled) {
+            return render(hash, renderer);
+        }
+        String lockKey = LOCK + hash;
+        String identifier = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + lockWaitMillis;
+        while (!tryLock(lockKey, identifier)) {
+            // 其他节点正在生成页面
+            if (System.currentTimeMillis() >= deadline) {
+                return render(hash, renderer);
+            }
+            sleep(lockPollMillis);
+            cached = get(pageKey);
+            if (cached != null && !cached.isStale()) {
+                return cached.page;
+            }
+        }
+        try {
+            // 等待锁的时候其他节点可能已经生成了页面
+            cached = get(pageKey);
+            return cached != null && !cached.isStale() ? cached.page : render(hash, renderer);
+        } finally {
+            releaseLock(lockKey, identifier);
+        }
+    }
+
+    /**
+     * XFetch：{@code now - delta * beta * ln(random) >= softExpireAt}时刷新，delta是上一次生成页面耗费的时间。
+     */
+    private boolean shouldRefresh(CachedPage cached) {
+        if (cached.isStale()) {
+            return true;
+        }
+        if (xfetchBeta <= 0) {
+            return false;
+        }
+        double gap = -cached.deltaMillis * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= cached.softExpireAt;
+    }
+
+    /**
+     * 在后台重新生成页面，同一个页面同时只有一个刷新任务，队列满时放弃这次刷新
+     */
+    private void refreshInBackground(String hash, Supplier<Page> renderer) {
+        if (!refreshing.add(hash)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                String lockKey = LOCK + hash;
+                String identifier = UUID.randomUUID().toString();
+                // 其他节点正在生成这个页面时不用再生成
+                boolean locked = !lockEnabled || tryLock(lockKey, identifier);
+                try {
+                    if (locked) {
+                        Page page = render(hash, renderer);
+                        if (l1 != null) {
+                            l1.put(hash, page);
+                        }
+                        refreshes.increment();
+                    }
+                } catch (RuntimeException e) {
+                    // 旧页面还能继续使用，下一次请求再刷新
+                    refreshFailures.increment();
+                    LOG.warn("Failed to refresh page {}", hash, e);
+                } finally {
+                    if (locked && lockEnabled) {
+                        releaseLock(lockKey, identifier);
+                    }
+                    refreshing.remove(hash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(hash);
+            droppedRefreshes.increment();
+        }
+    }
+
+    private boolean tryLock(String lockKey, String identifier) {
+        ValueOperations<String, String> valueOperations = stringRedisTemplate.opsForValue();
+        return Boolean.TRUE
+            .equals(valueOperations.setIfAbsent(lockKey, identifier, lockTimeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private void releaseLock(String lockKey, String identifier) {
+        stringRedisTemplate.execute(RELEASE_LOCK_SCRIPT, Collections.singletonList(lockKey), identifier);
+    }
+
+    /**
+     * Redis里面保存的是：变旧的时间（8字节）、生成页面耗费的毫秒数（4字节）、{@link PageCodec}编码的页面
+     */
+    private CachedPage get(byte[] pageKey) {
+        byte[] cached = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(pageKey));
+        if (cached == null) {
+            return null;
         }
+        ByteBuffer buffer = ByteBuffer.wrap(cached);
+        long softExpireAt = buffer.getLong();
+        int deltaMillis = buffer.getInt();
+        byte[] encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+        return new CachedPage(PageCodec.decode(encoded), softExpireAt, deltaMillis);
+    }
+
+    private Page render(String hash, Supplier<Page> renderer) {
+        renders.increment();
+        long start = System.currentTimeMillis();
+        Page page = renderer.get();
+        long now = System.currentTimeMillis();
+        byte[] encoded = PageCodec.encode(page, compressThreshold);
+        long softExpireAt = now + ttlSeconds * 1000;
+        byte[] value = ByteBuffer.allocate(12 + encoded.length).putLong(softExpireAt)
+            .putInt((int) (now - start)).put(encoded).array();
+        byte[] pageKey = (CACHE + hash).getBytes(StandardCharsets.UTF_8);
+        byte[] metaKey = (CACHE_META + hash).getBytes(StandardCharsets.UTF_8);
+        byte[] meta = (softExpireAt + " " + page.getETag()).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.setEx(pageKey, ttlSeconds + staleTtlSeconds, value);
+            connection.setEx(metaKey, ttlSeconds + staleTtlSeconds, meta);
+            return null;
+        });
         return page;
     }
 
-    private String hashRequest(HttpServletRequest request) {
-        return null;
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return 一级缓存的命中率，没有开启一级缓存时为0
+     */
+    public double getL1HitRatio() {
+        return l1 == null ? 0D : l1.getHitRatio();
+    }
+
+    /**
+     * @return Redis的命中率
+     */
+    public double getL2HitRatio() {
+        long hits = l2Hits.sum();
+        long total = hits + l2Misses.sum();
+        return total == 0 ? 0D : (double) hits / total;
+    }
+
+    /**
+     * @return 等待同一进程里其他线程加载结果的次数
+     */
+    public long getSingleFlightWaits() {
+        return singleFlightWaits.sum();
+    }
+
+    /**
+     * @return 生成页面的次数
+     */
+    public long getRenders() {
+        return renders.sum();
+    }
+
+    /**
+     * @return 返回旧页面并在后台刷新的次数
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return 页面还没变旧时按XFetch提前刷新的次数
+     */
+    public long getEarlyRefreshes() {
+        return earlyRefreshes.sum();
+    }
+
+    /**
+     * @return 后台刷新成功的次数
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    /**
+     * @return 因为刷新队列已满而放弃的刷新次数
+     */
+    public long getDroppedRefreshes() {
+        return droppedRefreshes.sum();
+    }
+
+    /**
+     * @return 等待执行的刷新任务数
+     */
+    public int getRefreshQueueSize() {
+        return refreshExecutor.getQueue().size();
+    }
+
+    /**
+     * @return 正在执行的刷新任务数
+     */
+    public int getActiveRefreshes() {
+        return refreshExecutor.getActiveCount();
+    }
+
+    /**
+     * 读取页面的ETag，只访问很小的元数据，不读取页面内容
+     *
+     * @param request http请求
+     * @return ETag，页面没有缓存或者已经变旧时为null，旧页面需要通过{@link #cacheRequest}刷新
+     */
+    public String getETag(HttpServletRequest request) {
+        String meta = stringRedisTemplate.opsForValue().get(CACHE_META + hashRequest(request));
+        int space = meta == null ? -1 : meta.indexOf(' ');
+        if (space < 0 || NumberUtils.toLong(meta.substring(0, space)) <= System.currentTimeMillis()) {
+            return null;
+        }
+        return meta.substring(space + 1);
+    }
+
+    /**
+     * 把请求规范化之后计算MD5作为缓存键：合并路径里面重复的斜杠并去掉末尾的斜杠，
+     * 去掉跟踪参数，参数按名字排序，同名参数的值也排序，这样只是参数顺序不同的请求会命中同一个缓存页面。
+     *
+     * @param request http请求
+     * @return 缓存键
+     */
+    String hashRequest(HttpServletRequest request) {
+        String path = request.getRequestURI().replaceAll("/{2,}", "/");
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        StringBuilder canonical = new StringBuilder(path);
+        char separator = '?';
+        for (Map.Entry<String, String[]> param : new TreeMap<>(request.getParameterMap()).entrySet()) {
+            String name = param.getKey();
+            if (TRACKING_PARAMS.contains(name) || name.startsWith(TRACKING_PARAM_PREFIX)) {
+                continue;
+            }
+            String[] values = param.getValue().clone();
+            Arrays.sort(values);
+            for (String value : values) {
+                canonical.append(separator).append(encode(name)).append('=').append(encode(value));
+                separator = '&';
+            }
+        }
+        return DigestUtils.md5DigestAsHex(canonical.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 只缓存GET请求；带有动态参数的请求不缓存；商品页面只缓存浏览次数排名靠前的商品。
+     *
+     * @param request http请求
+     * @return true表示不能缓存
+     */
+    boolean canNotCache(HttpServletRequest request) {
+        if (!"GET".equals(request.getMethod()) || request.getParameter(DYNAMIC_PARAM) != null) {
+            return true;
+        }
+        String itemId = request.getParameter(ITEM_PARAM);
+        return itemId != null && !tokenCookieService.canCache(itemId);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    private boolean canNotCache(HttpServletRequest request) {
-        return false;
+    /**
+     * Redis里面缓存的页面
+     */
+    private static class CachedPage {
+        private final Page page;
+        /** 变旧的时间 */
+        private final long softExpireAt;
+        /** 生成页面耗费的毫秒数 */
+        private final int deltaMillis;
+
+        CachedPage(Page page, long softExpireAt, int deltaMillis) {
+            this.page = page;
+            this.softExpireAt = softExpireAt;
+            this.deltaMillis = deltaMillis;
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() >= softExpireAt;
+        }
     }
 
-    public static class Page implements Serializable {
-        private static final long serialVersionUID = 2089275542828353815L;
+    public static class Page {
+        /** 内容类型，比如text/html;charset=UTF-8 */
+        private final String contentType;
+        /** 和页面一起缓存的响应头，比如Cache-Control、Vary */
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private volatile String etag;
+
+        public Page(String contentType, byte[] body) {
+            this(contentType, Collections.emptyMap(), body);
+        }
+
+        public Page(String contentType, Map<String, String> headers, byte[] body) {
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return 页面内容的MD5，带双引号，可以直接作为ETag响应头
+         */
+        public String getETag() {
+            if (etag == null) {
+                etag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+            }
+            return etag;
+        }
     }
 }
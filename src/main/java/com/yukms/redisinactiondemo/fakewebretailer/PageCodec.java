@@ -0,0 +1,91 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.util.StreamUtils;
+
+/**
+ * 缓存页面的二进制编码。
+ * <p/>
+ * 格式是：版本、标志位、内容类型（{@link DataOutputStream#writeUTF(String)}）、响应头的个数和每个响应头的名字与值、
+ * 页面内容。版本1没有响应头，仍然可以解码。
+ * 页面内容超过压缩阈值时用gzip压缩并设置标志位，小页面压缩的收益抵不上CPU开销，直接保存。
+ * 和JDK序列化相比，没有类描述信息，HTML压缩之后通常只有原来的四分之一左右。
+ *
+ * @author yukms 2019/1/25
+ */
+public final class PageCodec {
+    private static final byte VERSION = 2;
+    /** 没有响应头的旧版本 */
+    private static final byte VERSION_WITHOUT_HEADERS = 1;
+    private static final byte GZIP = 1;
+
+    private PageCodec() {
+    }
+
+    /**
+     * @param page              页面
+     * @param compressThreshold 页面内容超过这个字节数时压缩
+     * @return 编码后的字节
+     */
+    public static byte[] encode(PageCacheService.Page page, int compressThreshold) {
+        byte[] body = page.getBody();
+        boolean compress = body.length > compressThreshold;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(compress ? body.length / 4 + 64 : body.length + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeByte(compress ? GZIP : 0);
+            out.writeUTF(page.getContentType() == null ? "" : page.getContentType());
+            out.writeShort(page.getHeaders().size());
+            for (Map.Entry<String, String> header : page.getHeaders().entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+            if (compress) {
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(body);
+                }
+            } else {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static PageCacheService.Page decode(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte version = in.readByte();
+            if (version != VERSION && version != VERSION_WITHOUT_HEADERS) {
+                throw new IllegalArgumentException("Unsupported page codec version: " + version);
+            }
+            boolean compressed = in.readByte() == GZIP;
+            String contentType = in.readUTF();
+            Map<String, String> headers = Collections.emptyMap();
+            if (version == VERSION) {
+                int count = in.readUnsignedShort();
+                headers = new LinkedHashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    headers.put(in.readUTF(), in.readUTF());
+                }
+            }
+            InputStream body = compressed ? new GZIPInputStream(in) : in;
+            return new PageCacheService.Page(contentType.isEmpty() ? null : contentType, headers,
+                StreamUtils.copyToByteArray(body));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
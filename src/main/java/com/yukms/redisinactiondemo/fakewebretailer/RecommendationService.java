@@ -0,0 +1,461 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import com.yukms.redisinactiondemo.common.util.LongIntHashMap;
+import com.yukms.redisinactiondemo.common.util.PeriodLeases;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+/**
+ * “浏览了这件商品的用户还购买了……”
+ * <p/>
+ * 每个会话的{@code viewed:<token>}记录了用户最近浏览的商品，{@code cart:<token>}记录了用户准备购买的商品。
+ * 同一个会话里浏览了X又把Y加入购物车，就算X和Y共同出现一次。
+ * <p/>
+ * 全量计算用SCAN分批遍历所有会话，每批用一个流水线取出浏览记录和购物车，
+ * 再在内存里用多个线程并行统计商品对的共同出现次数（商品先编成int，商品对编成long，计数放在{@link LongIntHashMap}里面），
+ * 然后给每件商品写入共同出现次数最多的{@code top-k}件商品，并删除已经没有推荐的商品的{@code also:<商品>}。
+ * <p/>
+ * 计数和每个会话的商品编号会保留在内存里面，之后的增量计算只读取上次计算之后浏览过页面的会话
+ * （{@link TokenCookieService#getActiveTokens}）和被清理的会话（{@link TokenCookieService#LOGIN_CHANNEL}），
+ * 减去旧会话的商品对、加上新会话的商品对，只重写计数变化了的商品的推荐。
+ * 只修改购物车而不浏览页面的会话要等到下一次浏览页面或者下一次全量计算才会被统计；
+ * 订阅消息也可能丢失，所以每{@code full-rebuild-runs}次计算做一次全量计算作为兜底。
+ * <p/>
+ * 商品编号在每次全量计算时重新分配，不再出现的商品不会一直占着内存。内存里最多保留{@code max-sessions}个会话，
+ * 会话更多时只统计不保留，下一次仍然做全量计算。
+ * <p/>
+ * 开启之后（{@code enabled}）每隔{@code interval-seconds}秒计算一次，每个周期只有抢到{@link PeriodLeases 租约}的节点计算。
+ * 每个节点的计数保存在自己的内存里面，增量计算从这个节点上次计算的时间开始，中间有多少个周期由其他节点计算都没有关系。
+ * <p/>
+ * 查询推荐只需要一次ZREVRANGE。
+ *
+ * @author yukms 2019/1/25
+ */
+@Service
+@ConfigurationProperties("fake.web.retailer.recommendation")
+public class RecommendationService {
+    private static final Logger LOG = LoggerFactory.getLogger(RecommendationService.class);
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private TokenCookieService tokenCookieService;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    /** 浏览过的商品zset */
+    private static final String VIEWED = "viewed:";
+    /** 购物车 */
+    private static final String CART = "cart:";
+    /** 浏览了这件商品的用户还购买的商品zset */
+    private static final String ALSO = "also:";
+    /** 计算推荐的租约，后面加上周期序号 */
+    private static final String REBUILD_LEASE = "lock:rebuild:also:";
+    /** 是否定时计算推荐 */
+    private boolean enabled;
+    /** 计算间隔，单位秒 */
+    private long intervalSeconds = 3600;
+    /** 每批处理的会话数 */
+    private int scanBatchSize = 1000;
+    /** 每件商品保留的推荐数量 */
+    private int topK = 20;
+    /** 每隔多少次计算做一次全量计算 */
+    private int fullRebuildRuns = 24;
+    /** 内存里最多保留的会话数 */
+    private int maxSessions = 1000000;
+    /** 商品到编号的映射，全量计算时重新分配 */
+    private final Map<String, Integer> itemIds = new HashMap<>();
+    /** 编号到商品的映射 */
+    private final List<String> items = new ArrayList<>();
+    /** 商品对的共同出现次数，键的高32位是浏览的商品，低32位是购买的商品 */
+    private LongIntHashMap pairs = new LongIntHashMap();
+    /** 上次计算时每个会话浏览和购买的商品编号，都已经排好序 */
+    private Map<String, int[][]> sessions = new HashMap<>();
+    /** 上次计算的开始时间，单位秒，-1表示下一次需要做全量计算 */
+    private volatile long watermark = -1;
+    /** 上次全量计算之后的增量计算次数 */
+    private int runs;
+    /** 上次计算之后被清理的会话 */
+    private final Set<String> removedTokens = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService scheduler;
+
+    public void setScanBatchSize(int scanBatchSize) {
+        this.scanBatchSize = scanBatchSize;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public void setFullRebuildRuns(int fullRebuildRuns) {
+        this.fullRebuildRuns = fullRebuildRuns;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setIntervalSeconds(long intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            // 下一次是全量计算时不需要记录，全量计算会重新遍历所有会话
+            if (watermark >= 0) {
+                String tokens = new String(message.getBody(), StandardCharsets.UTF_8);
+                removedTokens.addAll(Arrays.asList(tokens.split(",")));
+            }
+        }, new ChannelTopic(TokenCookieService.LOGIN_CHANNEL));
+        if (enabled) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("recommendation"));
+            scheduler.scheduleWithFixedDelay(this::rebuildQuietly, intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void rebuildQuietly() {
+        try {
+            if (PeriodLeases.tryAcquire(stringRedisTemplate, REBUILD_LEASE, intervalSeconds)) {
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            // 下一个周期做全量计算
+            LOG.warn("Failed to rebuild recommendations", e);
+        }
+    }
+
+    /**
+     * 重新计算推荐，还没有做过全量计算或者已经做了{@code full-rebuild-runs}次增量计算时做全量计算
+     *
+     * @return 处理的会话数
+     */
+    public synchronized int rebuild() {
+        return rebuild(runs >= fullRebuildRuns);
+    }
+
+    /**
+     * 重新计算推荐
+     *
+     * @param full 是否遍历所有会话，还没有做过全量计算时总是全量计算
+     * @return 处理的会话数
+     */
+    public synchronized int rebuild(boolean full) {
+        long start = System.currentTimeMillis();
+        try {
+            return full || watermark < 0 ? rebuildAll(start) : rebuildChanged(start);
+        } catch (RuntimeException e) {
+            // 内存里的计数可能只更新了一部分，下一次重新做全量计算
+            watermark = -1;
+            throw e;
+        }
+    }
+
+    private int rebuildAll(long start) {
+        removedTokens.clear();
+        watermark = SystemUtil.getNowTimetamp();
+        runs = 0;
+        // 旧的计数和会话都会被替换，商品从头编号
+        itemIds.clear();
+        items.clear();
+        Map<String, int[][]> newSessions = new HashMap<>();
+        boolean tracking = true;
+        LongIntHashMap newPairs = new LongIntHashMap();
+        int scanned = 0;
+        ScanOptions options = ScanOptions.scanOptions().match(VIEWED + "*").count(scanBatchSize).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate
+            .executeWithStickyConnection((RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            List<String> tokens = new ArrayList<>(scanBatchSize);
+            while (cursor.hasNext()) {
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                // viewed:本身是商品浏览次数排行榜
+                if (key.length() > VIEWED.length()) {
+                    tokens.add(key.substring(VIEWED.length()));
+                }
+                if (tokens.size() >= scanBatchSize || !cursor.hasNext()) {
+                    Map<String, int[][]> batch = fetchSessions(tokens);
+                    if (tracking && newSessions.size() + batch.size() > maxSessions) {
+                        tracking = false;
+                        newSessions.clear();
+                    }
+                    if (tracking) {
+                        newSessions.putAll(batch);
+                    }
+                    newPairs.addAll(countPairs(batch.values(), 1));
+                    scanned += tokens.size();
+                    tokens.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pairs = newPairs;
+        sessions = newSessions;
+        Set<Integer> written = writeTopK(null);
+        int removed = removeStale(written);
+        if (!tracking) {
+            // 没有保留会话就没法做增量计算，计数也不用保留
+            LOG.warn("More than {} sessions, the next rebuild will be a full rebuild", maxSessions);
+            pairs = new LongIntHashMap();
+            watermark = -1;
+        }
+        LOG.info("Full rebuild counted {} item pairs from {} sessions, wrote {} and removed {} recommendation lists " +
+            "in {} ms", newPairs.size(), scanned, written.size(), removed, System.currentTimeMillis() - start);
+        return scanned;
+    }
+
+    private int rebuildChanged(long start) {
+        long since = watermark;
+        watermark = SystemUtil.getNowTimetamp();
+        runs++;
+        Set<String> removed = new HashSet<>(removedTokens);
+        removedTokens.removeAll(removed);
+        List<String> tokens = new ArrayList<>(tokenCookieService.getActiveTokens(since));
+        removed.removeAll(tokens);
+        tokens.addAll(removed);
+        LongIntHashMap delta = new LongIntHashMap();
+        for (int from = 0; from < tokens.size(); from += scanBatchSize) {
+            List<String> batch = tokens.subList(from, Math.min(from + scanBatchSize, tokens.size()));
+            Map<String, int[][]> fetched = fetchSessions(batch);
+            List<int[][]> oldSessions = new ArrayList<>();
+            List<int[][]> newSessions = new ArrayList<>();
+            for (String token : batch) {
+                int[][] oldSession = sessions.get(token);
+                int[][] newSession = fetched.get(token);
+                if (Arrays.deepEquals(oldSession, newSession)) {
+                    continue;
+                }
+                if (oldSession != null) {
+                    oldSessions.add(oldSession);
+                }
+                if (newSession == null) {
+                    sessions.remove(token);
+                } else {
+                    newSessions.add(newSession);
+                    sessions.put(token, newSession);
+                }
+            }
+            delta.addAll(countPairs(oldSessions, -1));
+            delta.addAll(countPairs(newSessions, 1));
+        }
+        pairs.addAll(delta);
+        Set<Integer> dirty = new HashSet<>();
+        delta.forEach((pair, count) -> dirty.add((int) (pair >>> 32)));
+        Set<Integer> written = dirty.isEmpty() ? Collections.emptySet() : writeTopK(dirty);
+        List<String> stale = new ArrayList<>();
+        for (int item : dirty) {
+            if (!written.contains(item)) {
+                stale.add(ALSO + items.get(item));
+            }
+        }
+        if (!stale.isEmpty()) {
+            stringRedisTemplate.unlink(stale);
+        }
+        if (sessions.size() > maxSessions) {
+            LOG.warn("More than {} sessions, the next rebuild will be a full rebuild", maxSessions);
+            sessions = new HashMap<>();
+            watermark = -1;
+        }
+        LOG.info("Incremental rebuild changed {} item pairs from {} sessions, wrote {} and removed {} " +
+                "recommendation lists in {} ms", delta.size(), tokens.size(), written.size(), stale.size(),
+            System.currentTimeMillis() - start);
+        return tokens.size();
+    }
+
+    /**
+     * 用一个流水线取出一批会话的浏览记录和购物车
+     *
+     * @param tokens 令牌
+     * @return 令牌到浏览和购买的商品编号，只包含浏览记录和购物车都不为空的会话
+     */
+    private Map<String, int[][]> fetchSessions(List<String> tokens) {
+        if (tokens.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String token : tokens) {
+                stringConnection.zRange(VIEWED + token, 0, -1);
+                stringConnection.hKeys(CART + token);
+            }
+            return null;
+        });
+        Map<String, int[][]> fetched = new HashMap<>();
+        for (int i = 0; i < results.size(); i += 2) {
+            @SuppressWarnings("unchecked")
+            Set<String> viewed = (Set<String>) results.get(i);
+            @SuppressWarnings("unchecked")
+            Set<String> bought = (Set<String>) results.get(i + 1);
+            if (viewed != null && !viewed.isEmpty() && bought != null && !bought.isEmpty()) {
+                fetched.put(tokens.get(i / 2), new int[][] {encode(viewed), encode(bought)});
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * 并行统计一批会话里面商品对的共同出现次数
+     *
+     * @param sessions 浏览和购买的商品编号
+     * @param delta    每个商品对增加的数量，减去旧会话时为-1
+     * @return 商品对的共同出现次数
+     */
+    private LongIntHashMap countPairs(Collection<int[][]> sessions, int delta) {
+        return sessions.parallelStream().collect(LongIntHashMap::new, (counts, session) -> {
+            for (int viewed : session[0]) {
+                for (int bought : session[1]) {
+                    if (viewed != bought) {
+                        counts.add((long) viewed << 32 | bought, delta);
+                    }
+                }
+            }
+        }, LongIntHashMap::addAll);
+    }
+
+    /**
+     * @return 排好序的商品编号，浏览记录的顺序每次浏览都会变化，排序之后才能比较会话有没有变化
+     */
+    private int[] encode(Set<String> itemSet) {
+        int[] encoded = new int[itemSet.size()];
+        int i = 0;
+        for (String item : itemSet) {
+            encoded[i++] = itemIds.computeIfAbsent(item, key -> {
+                items.add(key);
+                return items.size() - 1;
+            });
+        }
+        Arrays.sort(encoded);
+        return encoded;
+    }
+
+    /**
+     * 给商品写入共同出现次数最多的topK件商品。先写到临时键再RENAME，查询不会看到写了一半的结果。
+     *
+     * @param only 只写入这些商品，为null时写入所有商品
+     * @return 写入的商品编号
+     */
+    private Set<Integer> writeTopK(Set<Integer> only) {
+        Map<Integer, PriorityQueue<long[]>> tops = new HashMap<>();
+        pairs.forEach((pair, count) -> {
+            int item = (int) (pair >>> 32);
+            if (only != null && !only.contains(item)) {
+                return;
+            }
+            PriorityQueue<long[]> top = tops
+                .computeIfAbsent(item, key -> new PriorityQueue<>((a, b) -> Long.compare(a[1], b[1])));
+            top.offer(new long[] {pair, count});
+            if (top.size() > topK) {
+                top.poll();
+            }
+        });
+        List<Map.Entry<Integer, PriorityQueue<long[]>>> entries = new ArrayList<>(tops.entrySet());
+        for (int from = 0; from < entries.size(); from += scanBatchSize) {
+            List<Map.Entry<Integer, PriorityQueue<long[]>>> batch = entries
+                .subList(from, Math.min(from + scanBatchSize, entries.size()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Map.Entry<Integer, PriorityQueue<long[]>> entry : batch) {
+                    String key = ALSO + items.get(entry.getKey());
+                    String tmpKey = key + ":tmp";
+                    stringConnection.del(tmpKey);
+                    for (long[] pairCount : entry.getValue()) {
+                        stringConnection.zAdd(tmpKey, pairCount[1], items.get((int) pairCount[0]));
+                    }
+                    stringConnection.rename(tmpKey, key);
+                }
+                return null;
+            });
+        }
+        return tops.keySet();
+    }
+
+    /**
+     * 用SCAN找出这次全量计算没有写入的{@code also:<商品>}并分批删除
+     *
+     * @param written 这次写入的商品编号
+     * @return 删除的键数
+     */
+    private int removeStale(Set<Integer> written) {
+        int removed = 0;
+        ScanOptions options = ScanOptions.scanOptions().match(ALSO + "*").count(scanBatchSize).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate
+            .executeWithStickyConnection((RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            List<String> stale = new ArrayList<>(scanBatchSize);
+            while (cursor.hasNext()) {
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                Integer item = itemIds.get(key.substring(ALSO.length()));
+                if (item == null || !written.contains(item)) {
+                    stale.add(key);
+                }
+                if (!stale.isEmpty() && (stale.size() >= scanBatchSize || !cursor.hasNext())) {
+                    stringRedisTemplate.unlink(stale);
+                    removed += stale.size();
+                    stale.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return removed;
+    }
+
+    /**
+     * @return 内存里编号的商品数
+     */
+    public synchronized int getItemCount() {
+        return items.size();
+    }
+
+    /**
+     * @param itemId 商品ID
+     * @param count  最多返回的数量
+     * @return 浏览了这件商品的用户还购买的商品，按共同出现次数从多到少排列
+     */
+    public List<String> getAlsoBought(String itemId, int count) {
+        Set<String> also = stringRedisTemplate.opsForZSet().reverseRange(ALSO + itemId, 0, count - 1);
+        return also == null ? Collections.emptyList() : new ArrayList<>(also);
+    }
+}
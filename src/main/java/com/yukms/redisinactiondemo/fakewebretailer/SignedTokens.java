@@ -0,0 +1,291 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+/**
+ * 无状态的签名令牌。
+ * <p/>
+ * 令牌由两部分组成：{@code base64(用户ID:过期时间).base64(HMAC-SHA256签名)}，
+ * 验证时只需要在本地重新计算签名并检查过期时间，不用访问Redis。
+ * <p/>
+ * 签名令牌在过期之前一直有效，需要提前作废时把令牌的签名加入{@code revoked:}有序集合，分值是令牌的过期时间，
+ * 过期之后的签名会被顺手删除，所以这个集合一直很小。所有节点都在本地保存一份作废的签名和它的过期时间：
+ * 启动时全量加载，作废时通过频道广播，再每隔{@code revocation-refresh-seconds}秒全量加载一次，防止消息丢失。
+ * 全量加载的结果合并到本地，只删除已经过期的签名，所以加载期间收到的广播和本地刚作废、还没有写入Redis的签名不会丢失。
+ * 启动时加载失败会直接抛出异常，不会在不知道哪些令牌已经作废的情况下接受签名令牌。
+ * 没有开启签名令牌时不签发令牌，作废令牌什么也不做。
+ *
+ * @author yukms 2019/1/25
+ */
+@Component
+@ConfigurationProperties("fake.web.retailer.signed-token")
+public class SignedTokens {
+    private static final Logger LOG = LoggerFactory.getLogger(SignedTokens.class);
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    /** 作废的令牌签名zset，分值是令牌的过期时间 */
+    private static final String REVOKED = "revoked:";
+    /** 令牌作废频道，消息是{@code 签名:过期时间} */
+    private static final String REVOKED_CHANNEL = "revoked:invalidate";
+    private static final String ALGORITHM = "HmacSHA256";
+    /** 是否签发签名令牌 */
+    private boolean enabled;
+    /** 签名密钥，所有节点必须相同 */
+    private String secret;
+    /** 令牌有效期，单位秒 */
+    private long ttlSeconds = 24 * 60 * 60;
+    /** 全量加载作废签名的间隔，单位秒 */
+    private long revocationRefreshSeconds = 30;
+    /** 本地保存的作废签名到令牌过期时间的映射 */
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private ThreadLocal<Mac> mac;
+    private ScheduledExecutorService refresher;
+    private MessageListener revokedListener;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public void setRevocationRefreshSeconds(long revocationRefreshSeconds) {
+        this.revocationRefreshSeconds = revocationRefreshSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (StringUtils.isEmpty(secret)) {
+            throw new IllegalStateException("fake.web.retailer.signed-token.secret is required");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance(ALGORITHM);
+                instance.init(key);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        revokedListener = (message, pattern) -> onRevoked(new String(message.getBody(), StandardCharsets.UTF_8));
+        listenerContainer.addMessageListener(revokedListener, new ChannelTopic(REVOKED_CHANNEL));
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Failed to load revoked tokens", e);
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("revoked-token-refresher"));
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, revocationRefreshSeconds, revocationRefreshSeconds,
+            TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止接收作废广播和定时加载，清空本地的作废签名，之后不再签发和验证签名令牌
+     */
+    @PreDestroy
+    public void stop() {
+        if (revokedListener != null) {
+            listenerContainer.removeMessageListener(revokedListener);
+            revokedListener = null;
+        }
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        mac = null;
+        revoked.clear();
+    }
+
+    /**
+     * 签发令牌
+     *
+     * @param userId 用户ID
+     * @return 令牌
+     * @throws IllegalStateException 没有开启签名令牌
+     */
+    public String issue(String userId) {
+        long expireAt = SystemUtil.getNowTimetamp() + ttlSeconds;
+        String payload = encode((userId + ":" + expireAt).getBytes(StandardCharsets.UTF_8));
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * @param token 令牌
+     * @return true表示是签名令牌，false表示是保存在Redis里面的普通令牌
+     */
+    public boolean isSigned(String token) {
+        return token != null && token.indexOf('.') > 0;
+    }
+
+    /**
+     * 在本地验证令牌
+     *
+     * @param token 令牌
+     * @return 用户ID，签名错误、已经过期或者已经作废时为null
+     */
+    public String verify(String token) {
+        String[] claims = claims(token);
+        if (claims == null || revoked.containsKey(signature(token))) {
+            return null;
+        }
+        return claims[0];
+    }
+
+    /**
+     * 作废令牌，没有开启签名令牌时什么也不做
+     *
+     * @param token 令牌
+     */
+    public void revoke(String token) {
+        if (mac == null) {
+            return;
+        }
+        String[] claims = claims(token);
+        if (claims == null) {
+            return;
+        }
+        String signature = signature(token);
+        long expireAt = Long.parseLong(claims[1]);
+        revoked.merge(signature, expireAt, Math::max);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.zAdd(REVOKED, expireAt, signature);
+            stringConnection.zRemRangeByScore(REVOKED, Double.NEGATIVE_INFINITY, SystemUtil.getNowTimetamp());
+            stringConnection.publish(REVOKED_CHANNEL, signature + ":" + expireAt);
+            return null;
+        });
+    }
+
+    /**
+     * 从Redis全量加载还没有过期的作废签名，合并到本地之后删除已经过期的签名
+     */
+    public void refresh() {
+        long now = SystemUtil.getNowTimetamp();
+        Set<TypedTuple<String>> signatures = stringRedisTemplate.opsForZSet().rangeByScoreWithScores(REVOKED, now,
+            Double.POSITIVE_INFINITY);
+        if (signatures != null) {
+            for (TypedTuple<String> signature : signatures) {
+                revoked.merge(signature.getValue(), signature.getScore().longValue(), Math::max);
+            }
+        }
+        revoked.values().removeIf(expireAt -> expireAt <= now);
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            // 继续使用本地的作废签名，下一次再加载
+            LOG.warn("Failed to refresh revoked tokens", e);
+        }
+    }
+
+    /**
+     * @param message 作废频道的消息
+     */
+    private void onRevoked(String message) {
+        int colon = message.lastIndexOf(':');
+        if (colon < 0) {
+            // 不知道过期时间，按照最长的有效期保存
+            revoked.merge(message, SystemUtil.getNowTimetamp() + ttlSeconds, Math::max);
+        } else {
+            revoked.merge(message.substring(0, colon), NumberUtils.toLong(message.substring(colon + 1)), Math::max);
+        }
+    }
+
+    public int getRevokedTokens() {
+        return revoked.size();
+    }
+
+    /**
+     * @return 用户ID和过期时间，签名错误或者已经过期时为null
+     */
+    private String[] claims(String token) {
+        if (!isSigned(token)) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        String payload = token.substring(0, dot);
+        byte[] expected = sign(payload).getBytes(StandardCharsets.UTF_8);
+        // 逐字节比较所有字节，耗时和签名从哪里开始不同无关
+        if (!MessageDigest.isEqual(expected, signature(token).getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        String claims;
+        try {
+            claims = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int colon = claims.lastIndexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        long expireAt = NumberUtils.toLong(claims.substring(colon + 1));
+        if (expireAt <= SystemUtil.getNowTimetamp()) {
+            return null;
+        }
+        return new String[] {claims.substring(0, colon), String.valueOf(expireAt)};
+    }
+
+    private String signature(String token) {
+        return token.substring(token.indexOf('.') + 1);
+    }
+
+    private String sign(String payload) {
+        if (mac == null) {
+            throw new IllegalStateException("Signed tokens are not enabled");
+        }
+        return encode(mac.get().doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
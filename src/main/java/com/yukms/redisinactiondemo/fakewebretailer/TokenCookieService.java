@@ -1,17 +1,51 @@
 package com.yukms.redisinactiondemo.fakewebretailer;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import com.yukms.redisinactiondemo.common.util.LocalCache;
+import com.yukms.redisinactiondemo.common.util.PeriodLeases;
+import com.yukms.redisinactiondemo.common.util.RedisScripts;
 import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import com.yukms.redisinactiondemo.fakewebretailer.entity.CartItem;
+import com.yukms.redisinactiondemo.fakewebretailer.entity.CartSummary;
+import com.yukms.redisinactiondemo.sharding.HashShard;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
 
 /**
  * 令牌Cookie
@@ -41,33 +75,253 @@ import org.springframework.stereotype.Service;
 @Service
 @ConfigurationProperties("fake.web.retailer")
 public class TokenCookieService {
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCookieService.class);
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    @Autowired
+    private HashShard hashShard;
+    @Autowired
+    private ViewSketch viewSketch;
+    @Autowired
+    private ViewRankMirror viewRankMirror;
+    @Autowired
+    private SignedTokens signedTokens;
     /** 用户hash */
     private static final String LOGIN = "login:";
     /** 最后浏览页面记录zset */
     private static final String RECENT = "recent:";
+    /** 清理线程领取的令牌zset，分值是领取超时的时间戳 */
+    private static final String CLEANING = "cleaning:";
     /** 浏览过的商品zset */
     private static final String VIEWED = "viewed:";
     /** 购物车 */
     private static final String CART = "cart:";
+    /** 商品散列，保存价格和库存 */
+    private static final String ITEM = "item:";
+    private static final String PRICE = "price";
+    private static final String STOCK = "stock";
+    /** 令牌失效频道，清理会话之后发布被清理的令牌，多个令牌用逗号分隔 */
+    static final String LOGIN_CHANNEL = "login:invalidate";
+    private static final RedisScript<Long> UPDATE_TOKEN_SCRIPT = RedisScripts.load("script/update_token.lua",
+        Long.class);
+    private static final RedisScript<Long> RESCALE_VIEWED_SCRIPT = RedisScripts.load("script/rescale_viewed.lua",
+        Long.class);
+    /** 修剪排行榜的租约，后面加上周期序号 */
+    private static final String RESCALE_LEASE = "lock:rescale:viewed:";
+    /** 排行榜保留的商品数量 */
+    private static final int MAX_VIEWED_ITEMS = 20000;
+    private static final RedisScript<List> CLAIM_SESSIONS_SCRIPT = RedisScripts.load("script/claim_sessions.lua",
+        List.class);
+    private static final RedisScript<Long> RELEASE_SESSIONS_SCRIPT = RedisScripts.load(
+        "script/release_sessions.lua", Long.class);
     /** 浏览页面记录最大条数 */
     private int maxRecent;
+    /** 是否由后台线程异步更新令牌 */
+    private boolean asyncUpdateToken;
+    /** 异步更新令牌的线程数 */
+    private int asyncUpdateThreads = 2;
+    /** 异步更新令牌的队列长度 */
+    private int asyncUpdateQueueSize = 10000;
+    /** 是否在本地缓存令牌对应的用户 */
+    private boolean tokenCacheEnabled;
+    /** 本地最多缓存的令牌数 */
+    private int tokenCacheSize = 100000;
+    /** 已登录令牌的本地缓存时间，单位毫秒 */
+    private long tokenCacheTtlMillis = 1000;
+    /** 未登录令牌的本地缓存时间，单位毫秒 */
+    private long tokenCacheNegativeTtlMillis = 200;
+    /**
+     * 会话分片数，大于0时登录散列和最后浏览页面记录会按令牌分散到login:0、recent:0等多个键里面，
+     * 每个分片最多保留maxRecent/sessionShards条浏览页面记录
+     */
+    private int sessionShards;
+    /** 商品浏览次数的统计方式 */
+    private ViewCounter viewCounter = ViewCounter.ZSET;
+    /** 是否定时修剪商品浏览次数排行榜 */
+    private boolean rescaleEnabled;
+    /** 修剪排行榜的周期，单位秒 */
+    private long rescaleIntervalSeconds = 300;
+    /** 每批清理的会话数 */
+    private int sessionCleanupBatchSize = 100;
+    /** 每个分片的会话清理线程数，大于0时启动后自动开始清理 */
+    private int sessionCleanupWorkers;
+    /** 领取的会话没有清理成功时，经过多少秒之后重新领取 */
+    private long sessionClaimTimeoutSeconds = 30;
+    private ThreadPoolExecutor updateTokenExecutor;
+    private ExecutorService sessionCleaners;
+    private ScheduledExecutorService rescaler;
+    private volatile long lastRescaleMillis;
+    private volatile long lastRescaleRemoved;
+    private final LongAdder droppedUpdates = new LongAdder();
+    private final LongAdder sessionCleanupFailures = new LongAdder();
+    private LocalCache<String, Optional<String>> tokenCache;
 
     public void setMaxRecent(int maxRecent) {
         this.maxRecent = maxRecent;
     }
 
+    public void setAsyncUpdateToken(boolean asyncUpdateToken) {
+        this.asyncUpdateToken = asyncUpdateToken;
+    }
+
+    public void setAsyncUpdateThreads(int asyncUpdateThreads) {
+        this.asyncUpdateThreads = asyncUpdateThreads;
+    }
+
+    public void setAsyncUpdateQueueSize(int asyncUpdateQueueSize) {
+        this.asyncUpdateQueueSize = asyncUpdateQueueSize;
+    }
+
+    public void setTokenCacheEnabled(boolean tokenCacheEnabled) {
+        this.tokenCacheEnabled = tokenCacheEnabled;
+    }
+
+    public void setTokenCacheSize(int tokenCacheSize) {
+        this.tokenCacheSize = tokenCacheSize;
+    }
+
+    public void setTokenCacheTtlMillis(long tokenCacheTtlMillis) {
+        this.tokenCacheTtlMillis = tokenCacheTtlMillis;
+    }
+
+    public void setTokenCacheNegativeTtlMillis(long tokenCacheNegativeTtlMillis) {
+        this.tokenCacheNegativeTtlMillis = tokenCacheNegativeTtlMillis;
+    }
+
+    public void setSessionShards(int sessionShards) {
+        this.sessionShards = sessionShards;
+    }
+
+    public void setViewCounter(ViewCounter viewCounter) {
+        this.viewCounter = viewCounter;
+    }
+
+    public void setRescaleEnabled(boolean rescaleEnabled) {
+        this.rescaleEnabled = rescaleEnabled;
+    }
+
+    public void setRescaleIntervalSeconds(long rescaleIntervalSeconds) {
+        this.rescaleIntervalSeconds = rescaleIntervalSeconds;
+    }
+
+    public void setSessionCleanupBatchSize(int sessionCleanupBatchSize) {
+        this.sessionCleanupBatchSize = sessionCleanupBatchSize;
+    }
+
+    public void setSessionCleanupWorkers(int sessionCleanupWorkers) {
+        this.sessionCleanupWorkers = sessionCleanupWorkers;
+    }
+
+    public void setSessionClaimTimeoutSeconds(long sessionClaimTimeoutSeconds) {
+        this.sessionClaimTimeoutSeconds = sessionClaimTimeoutSeconds;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (viewRankMirror.isEnabled()) {
+            viewRankMirror.start(this::viewRankKey);
+        }
+        if (rescaleEnabled) {
+            rescaler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("rescale-viewed"));
+            rescaler.scheduleAtFixedRate(this::rescaleViewedQuietly, rescaleIntervalSeconds, rescaleIntervalSeconds,
+                TimeUnit.SECONDS);
+        }
+        if (sessionCleanupWorkers > 0) {
+            startSessionCleaners();
+        }
+        if (tokenCacheEnabled) {
+            tokenCache = new LocalCache<>(tokenCacheSize, tokenCacheTtlMillis);
+            listenerContainer.addMessageListener((message, pattern) -> {
+                String tokens = new String(message.getBody(), StandardCharsets.UTF_8);
+                for (String token : tokens.split(",")) {
+                    tokenCache.invalidate(token);
+                }
+            }, new ChannelTopic(LOGIN_CHANNEL));
+        }
+        if (asyncUpdateToken) {
+            updateTokenExecutor = new ThreadPoolExecutor(asyncUpdateThreads, asyncUpdateThreads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(asyncUpdateQueueSize),
+                new DaemonThreadFactory("update-token"), (runnable, executor) -> droppedUpdates.increment());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        viewRankMirror.stop();
+        if (rescaler != null) {
+            rescaler.shutdownNow();
+        }
+        stopSessionCleaners();
+        if (updateTokenExecutor != null) {
+            updateTokenExecutor.shutdown();
+            updateTokenExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
     /**
      * 检查用户是否已经登录，需要根据给定的令牌来查找与之对应的用户，
      * 并在用户已经登录的情况下，返回该用户的ID
+     * <p/>
+     * 令牌在有效期内对应的用户不会改变，开启本地缓存（{@code token-cache-enabled}）之后，
+     * 查询结果会在本地缓存一小段时间，未登录的令牌也会被缓存更短的时间，避免无效令牌每次都访问Redis。
+     * 会话被清理时会广播失效消息，即使消息丢失，被清理的会话最多也只会在本地多存活一个缓存时间。
+     * <p/>
+     * 开启签名令牌（{@code signed-token.enabled}）之后，{@link #issueToken(String)}签发的令牌在本地验证签名和过期时间，
+     * 只需要查本地保存的作废签名，不访问Redis；以前签发的普通令牌仍然按原来的方式检查。
      *
      * @param token 令牌
      * @return 用户ID
      */
     public String checkToken(String token) {
+        if (signedTokens.isEnabled() && signedTokens.isSigned(token)) {
+            return signedTokens.verify(token);
+        }
+        if (tokenCache == null) {
+            return loadUserId(token);
+        }
+        Optional<String> cached = tokenCache.get(token);
+        if (cached != null) {
+            return cached.orElse(null);
+        }
+        String userId = loadUserId(token);
+        tokenCache.put(token, Optional.ofNullable(userId),
+            userId == null ? tokenCacheNegativeTtlMillis : tokenCacheTtlMillis);
+        return userId;
+    }
+
+    /**
+     * 签发携带用户ID和过期时间的签名令牌，需要开启{@code signed-token.enabled}。
+     * 用户浏览页面时仍然调用{@link #updateToken(String, String, String)}，登录散列和最后浏览页面记录继续用于统计分析。
+     *
+     * @param userId 用户ID
+     * @return 令牌
+     * @throws IllegalStateException 没有开启签名令牌
+     */
+    public String issueToken(String userId) {
+        return signedTokens.issue(userId);
+    }
+
+    /**
+     * 在签名令牌过期之前作废它，比如用户退出登录。没有开启签名令牌时什么也不做
+     *
+     * @param token 令牌
+     */
+    public void revokeToken(String token) {
+        signedTokens.revoke(token);
+    }
+
+    /**
+     * @return 令牌本地缓存的命中率，没有开启本地缓存时为0
+     */
+    public double getTokenCacheHitRatio() {
+        return tokenCache == null ? 0D : tokenCache.getHitRatio();
+    }
+
+    private String loadUserId(String token) {
         HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
-        return hashOperations.get(LOGIN, token);
+        return hashOperations.get(shardKey(LOGIN, shardOf(token)), token);
     }
 
     /**
@@ -75,6 +329,18 @@ public class TokenCookieService {
      * 并将用户的令牌和当前时间戳添加到最近登录用户的有序集合里面。
      * 如果用户正在浏览的是一个商品页面，那么程序还会将这个商品添加到
      * 记录这个用户最近浏览过的商品的有序集合里面，并在被记录商品的数量超过25个时，对这个有序集合进行修剪。
+     * <p/>
+     * 每个用户都有一个相应的记录用户浏览商品历史的有序集合，
+     * 尽管使用这些有序集合可以计算出用户最经常浏览的商品，
+     * 但进行这种计算却需要耗费大量的时间。
+     * 所以这里还记录了所有商品的浏览次数，并根据浏览次数对商品进行排序，
+     * 随着时间流逝，商品的浏览次数会呈现两级分化的状态，一些商品的浏览次数会越来越多，
+     * 而另一些商品的浏览次数会越来越少。
+     * <p/>
+     * 这个函数每次浏览页面都会调用，以前需要5次网络往返，现在所有命令都在一个Lua脚本里面执行，只需要一次。
+     * 开启异步模式（{@code async-update-token}）之后，请求线程只用一个流水线同步写入登录散列和最后浏览页面记录，
+     * 浏览记录和浏览次数由后台线程更新，请求线程不再等待；后台队列满的时候只丢弃这次浏览统计，
+     * 并计入{@link #getDroppedUpdates()}，令牌仍然是登录状态，紧接着的{@link #checkToken}也能查到用户。
      *
      * @param token  令牌
      * @param userId 用户ID
@@ -82,28 +348,50 @@ public class TokenCookieService {
      */
     public void updateToken(String token, String userId, String itemId) {
         long timetamp = SystemUtil.getNowTimetamp();
-        HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
-        hashOperations.put(LOGIN, token, userId);
-        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
-        zSetOperations.add(RECENT, token, timetamp);
+        if (tokenCache != null) {
+            // 刚登录的令牌可能被缓存为未登录
+            tokenCache.invalidate(token);
+        }
+        if (updateTokenExecutor == null) {
+            doUpdateToken(token, userId, itemId, timetamp);
+            return;
+        }
+        int shard = shardOf(token);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.hSet(shardKey(LOGIN, shard), token, userId);
+            stringConnection.zAdd(shardKey(RECENT, shard), timetamp, token);
+            return null;
+        });
         if (StringUtils.isNotEmpty(itemId)) {
-            zSetOperations.add(VIEWED + token, itemId, timetamp);
-            // 注意
-            zSetOperations.removeRange(VIEWED + token, 0, -26);
-            /*
-             * 每个用户都有一个相应的记录用户浏览商品历史的有序集合，
-             * 尽管使用这些有序集合可以计算出用户最经常浏览的商品，
-             * 但进行这种计算却需要耗费大量的时间。
-             * <p/>
-             * 新代码记录了所有商品的浏览次数，并根据浏览次数对商品进行排序，
-             * 被浏览得最多的商品将被放到有序集合的索引0位置上，并且具有整个有序集合最少的分值。
-             * 随着时间流逝，商品的浏览次数会呈现两级分化的状态，一些商品的浏览次数会越来越多，
-             * 而另一些商品的浏览次数会越来越少。
-             */
-            // 代码有错误
-            // zSetOperations.incrementScore(VIEWED, itemId, -1);
-            zSetOperations.incrementScore(VIEWED, itemId, 1);
+            // 用户ID为空时脚本只更新浏览记录和浏览次数
+            updateTokenExecutor.execute(() -> doUpdateToken(token, "", itemId, timetamp));
+        }
+    }
+
+    private void doUpdateToken(String token, String userId, String itemId, long timetamp) {
+        int shard = shardOf(token);
+        List<String> keys = new ArrayList<>(Arrays.asList(shardKey(LOGIN, shard), shardKey(RECENT, shard),
+            VIEWED + token));
+        List<String> args = new ArrayList<>(Arrays.asList(token, userId, String.valueOf(timetamp),
+            StringUtils.defaultString(itemId)));
+        if (viewCounter == ViewCounter.SKETCH) {
+            keys.addAll(viewSketch.keys());
+            args.add(String.valueOf(viewSketch.getTopK()));
+            if (StringUtils.isNotEmpty(itemId)) {
+                args.addAll(Arrays.asList(viewSketch.indexes(itemId)));
+            }
+        } else {
+            keys.add(VIEWED);
         }
+        stringRedisTemplate.execute(UPDATE_TOKEN_SCRIPT, keys, args.toArray());
+    }
+
+    /**
+     * @return 异步模式下因为队列已满而被丢弃的浏览统计次数
+     */
+    public long getDroppedUpdates() {
+        return droppedUpdates.sum();
     }
 
     /**
@@ -111,20 +399,61 @@ public class TokenCookieService {
      * 为了让商品浏览次数排行榜能保持最新，我们需要定期修剪有序集合的长度并调整已有元素的分值，
      * 从而使得新流行的商品也可以在排行榜里面占据一席之地。
      * <p/>
-     * 每隔5分钟，程序就会删除所有排名20000名之后的商品，并将删除之后剩余的所有商品的浏览次数减半。
+     * 每隔{@code rescale-interval-seconds}秒（默认5分钟），程序就会删除所有排名20000名之后的商品，
+     * 并将删除之后剩余的所有商品的浏览次数减半，修剪和减半在一个脚本里面原子地完成。
+     * 使用Count-Min Sketch统计时没有需要修剪的商品，只把所有计数器减半。
+     * <p/>
+     * 所有节点都会定时调用，每个周期只有抢到{@link PeriodLeases 租约}的节点才会执行。
+     *
+     * @return 删除的商品数量，没有抢到租约时为-1
      */
-    public void rescaleViewed() throws InterruptedException {
-        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
-        for (; ; ) {
-            zSetOperations.removeRange(VIEWED, 0, -20001);
-            zSetOperations.intersectAndStore(VIEWED, Collections.emptyList(), VIEWED, RedisZSetCommands.Aggregate.SUM,
-                RedisZSetCommands.Weights.of(0.5D));
-            Thread.sleep(1000 * 60 * 5);
+    public long rescaleViewed() {
+        if (!PeriodLeases.tryAcquire(stringRedisTemplate, RESCALE_LEASE, rescaleIntervalSeconds)) {
+            return -1;
         }
+        long start = System.nanoTime();
+        long removed = 0;
+        if (viewCounter == ViewCounter.SKETCH) {
+            viewSketch.decay();
+        } else {
+            Long result = stringRedisTemplate.execute(RESCALE_VIEWED_SCRIPT, Collections.singletonList(VIEWED),
+                String.valueOf(MAX_VIEWED_ITEMS));
+            removed = result == null ? 0 : result;
+        }
+        lastRescaleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastRescaleRemoved = removed;
+        LOG.info("Rescaled viewed items in {} ms, removed {} items", lastRescaleMillis, removed);
+        return removed;
+    }
+
+    private void rescaleViewedQuietly() {
+        try {
+            rescaleViewed();
+        } catch (RuntimeException e) {
+            // 访问Redis失败，这个周期不再重试，下一个周期再执行
+            LOG.warn("Failed to rescale viewed items", e);
+        }
+    }
+
+    /**
+     * @return 本节点最后一次修剪排行榜耗费的毫秒数
+     */
+    public long getLastRescaleMillis() {
+        return lastRescaleMillis;
+    }
+
+    /**
+     * @return 本节点最后一次修剪排行榜删除的商品数量
+     */
+    public long getLastRescaleRemoved() {
+        return lastRescaleRemoved;
     }
 
     /**
-     * 根据商品浏览次数排名来判断是否需要缓存。
+     * 根据商品浏览次数排名来判断是否需要缓存，排行榜前N名（{@code view-mirror.size}）的商品才缓存。
+     * 使用Count-Min Sketch统计时排行榜是浏览次数最多的商品。
+     * 开启本地镜像（{@code view-mirror.enabled}）并且镜像刷新成功之后只查本地集合，不访问Redis，
+     * 在这之前用ZREVRANK查询Redis，两种方式的结果相同。
      *
      * @param itemId 商品ID
      * @return true表示可以缓存，false表示不能缓存
@@ -133,9 +462,11 @@ public class TokenCookieService {
         if (StringUtils.isEmpty(itemId)) {
             return false;
         }
-        Long rank = stringRedisTemplate.opsForZSet().rank(VIEWED, itemId);
-        // return rank != null && rank < 10000;
-        return rank != null && rank > 10000;
+        if (viewRankMirror.isReady()) {
+            return viewRankMirror.contains(itemId);
+        }
+        Long rank = stringRedisTemplate.opsForZSet().reverseRank(viewRankKey(), itemId);
+        return rank != null && rank < viewRankMirror.getSize();
     }
 
     /**
@@ -159,9 +490,79 @@ public class TokenCookieService {
         }
     }
 
+    /**
+     * 批量更新购物车，数量大于0的商品用一个HMSET写入，数量不大于0的商品用一个HDEL移除，两个命令在一个流水线里面发送。
+     *
+     * @param token  令牌
+     * @param counts 商品ID与数量
+     */
+    public void updateCart(String token, Map<String, Integer> counts) {
+        if (CollectionUtils.isEmpty(counts)) {
+            return;
+        }
+        String cartKey = CART + token;
+        Map<String, String> puts = new HashMap<>();
+        List<String> deletes = new ArrayList<>();
+        counts.forEach((itemId, count) -> {
+            if (count <= 0) {
+                deletes.add(itemId);
+            } else {
+                puts.put(itemId, String.valueOf(count));
+            }
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            if (!puts.isEmpty()) {
+                stringConnection.hMSet(cartKey, puts);
+            }
+            if (!deletes.isEmpty()) {
+                stringConnection.hDel(cartKey, deletes.toArray(new String[0]));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 结算购物车：先取出整个购物车，再用一个流水线查询所有商品的价格和库存，
+     * 不管购物车里有多少件商品都只需要两次网络往返。
+     *
+     * @param token 令牌
+     * @return 购物车结算信息
+     */
+    public CartSummary getCartSummary(String token) {
+        HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
+        Map<String, String> cart = hashOperations.entries(CART + token);
+        CartSummary summary = new CartSummary();
+        if (CollectionUtils.isEmpty(cart)) {
+            return summary;
+        }
+        List<String> itemIds = new ArrayList<>(cart.keySet());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String itemId : itemIds) {
+                stringConnection.hMGet(ITEM + itemId, PRICE, STOCK);
+            }
+            return null;
+        });
+        long totalPrice = 0;
+        for (int i = 0; i < itemIds.size(); i++) {
+            @SuppressWarnings("unchecked")
+            List<String> values = (List<String>) results.get(i);
+            CartItem item = new CartItem();
+            item.setItemId(itemIds.get(i));
+            item.setCount(NumberUtils.toInt(cart.get(itemIds.get(i))));
+            item.setPrice(NumberUtils.toLong(values.get(0)));
+            item.setStock(NumberUtils.toLong(values.get(1)));
+            totalPrice += item.getPrice() * item.getCount();
+            summary.getItems().add(item);
+        }
+        summary.setTotalPrice(totalPrice);
+        return summary;
+    }
+
     /**
      * 检查存储最近登录令牌的有序集合的大小，如果有序集合的大小超过的限制，
-     * 那么程序就会从有序集合里面移除最多100个最旧的令牌，并从记录用户登录信息的散列里面，
+     * 那么程序就会从有序集合里面移除一批最旧的令牌，并从记录用户登录信息的散列里面，
      * 移除被删除令牌对应的用户的信息，并对存储了这些用户浏览商品记录的有序集合进行清理。
      * 除此之外，还要删除旧会话对应用户的购物车。
      * <p/>
@@ -176,22 +577,216 @@ public class TokenCookieService {
      * </strong>
      */
     public void cheanSessions() throws InterruptedException {
-        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
+        int shards = shardCount();
+        if (shards == 1) {
+            cleanShard(0);
+            return;
+        }
+        // 每个分片由自己的线程清理，直到被中断
+        ExecutorService cleaners = Executors.newFixedThreadPool(shards, new DaemonThreadFactory("session-cleaner"));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                int shard = i;
+                tasks.add(() -> {
+                    cleanShard(shard);
+                    return null;
+                });
+            }
+            cleaners.invokeAll(tasks);
+        } finally {
+            cleaners.shutdownNow();
+        }
+    }
+
+    /**
+     * 不停地清理一个分片，没有需要清理的会话或者访问Redis失败时等待一秒
+     *
+     * @param shard 分片
+     */
+    private void cleanShard(int shard) throws InterruptedException {
         for (; ; ) {
-            Long size = zSetOperations.size(RECENT);
-            if (null == size || size <= maxRecent) {
+            int cleaned;
+            try {
+                cleaned = cleanSessionBatch(shard);
+            } catch (RuntimeException e) {
+                // 领取的令牌会在领取超时之后被重新领取
+                sessionCleanupFailures.increment();
+                LOG.warn("Failed to clean sessions of shard {}", shard, e);
+                cleaned = 0;
+            }
+            if (cleaned == 0) {
                 Thread.sleep(1000L);
-                continue;
             }
-            long end = Math.min(size - maxRecent, 100);
-            Optional.ofNullable(zSetOperations.range(RECENT, 0, end - 1))//
-                .ifPresent(tokens -> tokens.forEach(token -> {
-                    stringRedisTemplate.delete(VIEWED + token);
-                    stringRedisTemplate.delete(CART + token);
-                    stringRedisTemplate.opsForHash().delete(LOGIN, token);
-                    zSetOperations.remove(RECENT, token);
-                }));
         }
     }
 
+    /**
+     * 清理一批会话，分片时每个分片并行地各清理一批。
+     * <p/>
+     * 先用脚本原子地领取最多{@code session-cleanup-batch-size}个最旧的令牌，领取的令牌记在{@code cleaning:}里面，
+     * 多个清理线程或者节点领取到的令牌不会重复；然后用一个流水线UNLINK这些令牌的浏览记录和购物车、
+     * HDEL登录散列并广播令牌失效消息。UNLINK在后台线程释放内存，很大的购物车也不会阻塞服务器。
+     * 流水线成功之后才把令牌从最后浏览页面记录里面删除。
+     * <p/>
+     * 如果清理线程在领取之后、删除之前失败或者崩溃，令牌仍然留在最后浏览页面记录里面，
+     * 经过{@code session-claim-timeout-seconds}秒之后会被重新领取和清理。
+     *
+     * @return 清理的会话数
+     */
+    public int cleanSessionBatch() {
+        return IntStream.range(0, shardCount()).parallel().map(this::cleanSessionBatch).sum();
+    }
+
+    @SuppressWarnings("unchecked")
+    private int cleanSessionBatch(int shard) {
+        List<String> recentKeys = Arrays.asList(shardKey(RECENT, shard), shardKey(CLEANING, shard));
+        List<String> claimed = stringRedisTemplate.execute(CLAIM_SESSIONS_SCRIPT, recentKeys,
+            String.valueOf(maxRecentPerShard()), String.valueOf(sessionCleanupBatchSize),
+            String.valueOf(SystemUtil.getNowTimetamp()), String.valueOf(sessionClaimTimeoutSeconds));
+        if (CollectionUtils.isEmpty(claimed)) {
+            return 0;
+        }
+        List<String> tokens = new ArrayList<>(claimed.size() / 2);
+        for (int i = 0; i < claimed.size(); i += 2) {
+            tokens.add(claimed.get(i));
+        }
+        String[] keys = new String[tokens.size() * 2];
+        for (int i = 0; i < tokens.size(); i++) {
+            keys[i * 2] = VIEWED + tokens.get(i);
+            keys[i * 2 + 1] = CART + tokens.get(i);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.unlink(keys);
+            stringConnection.hDel(shardKey(LOGIN, shard), tokens.toArray(new String[0]));
+            // 通知所有节点删除本地缓存的令牌
+            stringConnection.publish(LOGIN_CHANNEL, StringUtils.join(tokens, ","));
+            return null;
+        });
+        stringRedisTemplate.execute(RELEASE_SESSIONS_SCRIPT, recentKeys, claimed.toArray());
+        return tokens.size();
+    }
+
+    /**
+     * 给每个分片启动{@code session-cleanup-workers}个清理线程，各个分片互不影响地并行清理，
+     * 同一个分片的多个线程各自领取不重复的批次
+     */
+    public synchronized void startSessionCleaners() {
+        if (sessionCleaners != null) {
+            return;
+        }
+        int shards = shardCount();
+        sessionCleaners = Executors.newFixedThreadPool(shards * sessionCleanupWorkers,
+            new DaemonThreadFactory("session-cleaner"));
+        for (int shard = 0; shard < shards; shard++) {
+            int cleanedShard = shard;
+            for (int i = 0; i < sessionCleanupWorkers; i++) {
+                sessionCleaners.execute(() -> {
+                    try {
+                        cleanShard(cleanedShard);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * 停止清理线程，领取了还没有清理完的会话会在领取超时之后被重新领取
+     */
+    public synchronized void stopSessionCleaners() {
+        if (sessionCleaners != null) {
+            sessionCleaners.shutdownNow();
+            sessionCleaners = null;
+        }
+    }
+
+    /**
+     * @return 清理线程访问Redis失败的次数
+     */
+    public long getSessionCleanupFailures() {
+        return sessionCleanupFailures.sum();
+    }
+
+    /**
+     * @return 等待清理的会话数
+     */
+    public long getCleanupBacklog() {
+        List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < shardCount(); i++) {
+                stringConnection.zCard(shardKey(RECENT, i));
+            }
+            return null;
+        });
+        long backlog = 0;
+        for (Object size : sizes) {
+            backlog += Math.max((Long) size - maxRecentPerShard(), 0);
+        }
+        return backlog;
+    }
+
+    /**
+     * @param since 时间戳，单位秒
+     * @return 从这个时间开始浏览过页面（调用过{@link #updateToken}）的令牌
+     */
+    public Set<String> getActiveTokens(long since) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < shardCount(); i++) {
+                stringConnection.zRangeByScore(shardKey(RECENT, i), since, Double.POSITIVE_INFINITY);
+            }
+            return null;
+        });
+        Set<String> tokens = new HashSet<>();
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            Set<String> shardTokens = (Set<String>) result;
+            tokens.addAll(shardTokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * @return 商品浏览次数排行榜的键
+     */
+    private String viewRankKey() {
+        return viewCounter == ViewCounter.SKETCH ? ViewSketch.TOP : VIEWED;
+    }
+
+    private int shardCount() {
+        return sessionShards > 0 ? sessionShards : 1;
+    }
+
+    private int maxRecentPerShard() {
+        return (maxRecent + shardCount() - 1) / shardCount();
+    }
+
+    /**
+     * 令牌所在的分片，由令牌的CRC32散列值决定，见{@link HashShard#shardId(String, long)}
+     */
+    private int shardOf(String token) {
+        return sessionShards > 0 ? (int) hashShard.shardId(token, sessionShards) : 0;
+    }
+
+    /**
+     * @param key   用户散列或者最后浏览页面记录
+     * @param shard 分片
+     * @return 分片键，没有分片时就是原来的键
+     */
+    private String shardKey(String key, int shard) {
+        return sessionShards > 0 ? key + shard : key;
+    }
+
+    /**
+     * 商品浏览次数的统计方式
+     */
+    public enum ViewCounter {
+        /** 所有商品的浏览次数都记录在viewed:有序集合里面，需要定期修剪 */
+        ZSET,
+        /** 用固定大小的Count-Min Sketch近似统计，见{@link ViewSketch} */
+        SKETCH
+    }
 }
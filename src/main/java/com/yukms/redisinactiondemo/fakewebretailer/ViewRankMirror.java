@@ -0,0 +1,146 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.yukms.redisinactiondemo.common.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 浏览次数排行榜前N名商品的本地镜像。
+ * <p/>
+ * 每次请求可缓存的页面都要用ZRANK访问一次Redis来判断是否缓存，而排行榜本身变化得很慢。
+ * 开启镜像之后，后台线程每隔{@code refresh-interval-millis}毫秒用ZREVRANGE取出前{@code size}名商品，
+ * 替换成一个新的不可变集合，{@link TokenCookieService#canCache(String)}就只需要查本地集合。
+ * <p/>
+ * 刷新失败时保留旧的集合，镜像有多旧可以通过{@link #getStalenessMillis()}观察。
+ *
+ * @author yukms 2019/1/25
+ */
+@Component
+@ConfigurationProperties("fake.web.retailer.view-mirror")
+public class ViewRankMirror {
+    private static final Logger LOG = LoggerFactory.getLogger(ViewRankMirror.class);
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    /** 是否开启镜像 */
+    private boolean enabled;
+    /** 镜像的商品数量，也是{@link TokenCookieService#canCache(String)}缓存的商品数量 */
+    private int size = 10000;
+    /** 刷新间隔，单位毫秒 */
+    private long refreshIntervalMillis = 5000;
+    private volatile Set<String> items = Collections.emptySet();
+    /** 最后一次刷新成功的时间，0表示还没有刷新成功过 */
+    private volatile long lastRefreshTime;
+    private final LongAdder refreshFailures = new LongAdder();
+    private ScheduledExecutorService refresher;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * 立即刷新一次，然后开始定时刷新
+     *
+     * @param key 排行榜的键，统计方式可能在运行时改变，所以每次刷新都重新获取
+     */
+    public synchronized void start(Supplier<String> key) {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("view-rank-mirror"));
+        refresher.scheduleWithFixedDelay(() -> refreshQuietly(key.get()), 0, refreshIntervalMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定时刷新并清空镜像，之后由Redis回答
+     */
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        items = Collections.emptySet();
+        lastRefreshTime = 0;
+    }
+
+    /**
+     * 从Redis取出排行榜前N名商品，替换本地集合
+     *
+     * @param key 排行榜的键
+     */
+    public void refresh(String key) {
+        Set<String> top = stringRedisTemplate.opsForZSet().reverseRange(key, 0, size - 1);
+        items = top == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(top));
+        lastRefreshTime = System.currentTimeMillis();
+    }
+
+    private void refreshQuietly(String key) {
+        try {
+            refresh(key);
+        } catch (RuntimeException e) {
+            // 保留旧的镜像，下一次再刷新
+            refreshFailures.increment();
+            LOG.warn("Failed to refresh view rank mirror", e);
+        }
+    }
+
+    /**
+     * @return true表示镜像已经刷新成功过，可以代替Redis回答
+     */
+    public boolean isReady() {
+        return lastRefreshTime > 0;
+    }
+
+    /**
+     * @param itemId 商品ID
+     * @return true表示商品在排行榜前N名里面
+     */
+    public boolean contains(String itemId) {
+        return items.contains(itemId);
+    }
+
+    /**
+     * @return 镜像距离最后一次刷新成功过去的毫秒数，还没有刷新成功过时为-1
+     */
+    public long getStalenessMillis() {
+        long refreshTime = lastRefreshTime;
+        return refreshTime == 0 ? -1 : System.currentTimeMillis() - refreshTime;
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    public int getMirroredItems() {
+        return items.size();
+    }
+}
@@ -0,0 +1,146 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.yukms.redisinactiondemo.common.util.RedisScripts;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+/**
+ * 使用Count-Min Sketch近似统计商品浏览次数。
+ * <p/>
+ * sketch是一个字符串，由depth行、每行width个32位无符号计数器组成，用BITFIELD读写。
+ * 每次浏览把商品在每一行对应的计数器加1，估计值取所有行的最小值，只会偏大不会偏小，
+ * 偏大的部分以1-e^-depth的概率不超过总浏览次数的e/width。
+ * 不管有多少件商品，sketch占用的内存都固定为width*depth*4字节。
+ * <p/>
+ * sketch本身没法列出商品，所以另外用一个最多保存topK件商品的有序集合作为小顶堆，记录浏览次数最多的商品。
+ * 计数器的更新和小顶堆的维护在{@code update_token.lua}里面和更新令牌一起完成。
+ * <p/>
+ * 减半计数器时每次调用脚本只用BITFIELD处理{@link #DECAY_CHUNK}个计数器，整个sketch分多次调用完成，
+ * 单次调用阻塞服务器的时间很短，而且只改写非0的计数器。减半的过程中有的计数器已经减半，有的还没有，
+ * 估计值可能暂时偏小，最多偏小到减半之后的值。
+ *
+ * @author yukms 2019/1/25
+ */
+@Component
+@ConfigurationProperties("fake.web.retailer.view-sketch")
+public class ViewSketch {
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    /** Count-Min Sketch，不能放在viewed:下面，那里是每个令牌的浏览记录 */
+    static final String SKETCH = "cms:viewed:";
+    /** 浏览次数最多的商品zset */
+    static final String TOP = "topk:viewed:";
+    private static final RedisScript<Long> ESTIMATE_SCRIPT = RedisScripts
+        .load("script/view_sketch_estimate.lua", Long.class);
+    private static final RedisScript<Long> DECAY_SCRIPT = RedisScripts.load("script/view_sketch_decay.lua", Long.class);
+    /** 每次调用减半脚本处理的计数器数量，脚本里面unpack的参数个数有上限 */
+    private static final int DECAY_CHUNK = 1000;
+
+    /** 每一行的计数器数量 */
+    private int width = 65536;
+    /** 行数，也就是散列函数的数量 */
+    private int depth = 4;
+    /** 保留的浏览次数最多的商品数量 */
+    private int topK = 10000;
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    /**
+     * 计算商品在每一行的计数器下标。
+     * <p/>
+     * 用64位FNV-1a散列值的高低32位做双重散列，第i行的下标是(h1 + i * h2) % width，
+     * 效果和depth个独立的散列函数差不多。
+     *
+     * @param itemId 商品ID
+     * @return 每一行的计数器在整个sketch里面的下标
+     */
+    public String[] indexes(String itemId) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : itemId.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        String[] indexes = new String[depth];
+        for (int i = 0; i < depth; i++) {
+            long column = Integer.toUnsignedLong(h1 + i * h2) % width;
+            indexes[i] = String.valueOf((long) i * width + column);
+        }
+        return indexes;
+    }
+
+    /**
+     * @return 更新令牌脚本需要的键
+     */
+    List<String> keys() {
+        return Arrays.asList(SKETCH, TOP);
+    }
+
+    /**
+     * @param itemId 商品ID
+     * @return 商品浏览次数的估计值
+     */
+    public long estimate(String itemId) {
+        Long estimate = stringRedisTemplate.execute(ESTIMATE_SCRIPT, Collections.singletonList(SKETCH),
+            (Object[]) indexes(itemId));
+        return estimate == null ? 0 : estimate;
+    }
+
+    /**
+     * @param itemId 商品ID
+     * @return true表示商品是浏览次数最多的商品之一
+     */
+    public boolean isTop(String itemId) {
+        return stringRedisTemplate.opsForZSet().score(TOP, itemId) != null;
+    }
+
+    /**
+     * 所有计数器减半，让新流行的商品也能进入浏览次数最多的商品
+     *
+     * @return 调用脚本的次数
+     */
+    public int decay() {
+        long counters = (long) width * depth;
+        int calls = 0;
+        for (long start = 0; start < counters; start += DECAY_CHUNK) {
+            long count = Math.min(DECAY_CHUNK, counters - start);
+            Long more = stringRedisTemplate.execute(DECAY_SCRIPT, keys(), String.valueOf(start),
+                String.valueOf(count));
+            calls++;
+            if (more == null || more == 0) {
+                break;
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @return sketch占用的内存，单位字节
+     */
+    public long sketchBytes() {
+        return (long) width * depth * 4;
+    }
+}
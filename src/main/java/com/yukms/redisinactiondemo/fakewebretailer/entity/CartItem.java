@@ -0,0 +1,55 @@
+package com.yukms.redisinactiondemo.fakewebretailer.entity;
+
+/**
+ * 购物车里面的商品
+ *
+ * @author yukms 2019/1/25
+ */
+public class CartItem {
+    private String itemId;
+    /** 订购数量 */
+    private int count;
+    /** 单价，单位分，商品不存在时为0 */
+    private long price;
+    /** 库存 */
+    private long stock;
+
+    public String getItemId() {
+        return itemId;
+    }
+
+    public void setItemId(String itemId) {
+        this.itemId = itemId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public long getPrice() {
+        return price;
+    }
+
+    public void setPrice(long price) {
+        this.price = price;
+    }
+
+    public long getStock() {
+        return stock;
+    }
+
+    public void setStock(long stock) {
+        this.stock = stock;
+    }
+
+    /**
+     * @return true表示库存足够
+     */
+    public boolean isInStock() {
+        return stock >= count;
+    }
+}
@@ -0,0 +1,38 @@
+package com.yukms.redisinactiondemo.fakewebretailer.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 购物车结算信息
+ *
+ * @author yukms 2019/1/25
+ */
+public class CartSummary {
+    private List<CartItem> items = new ArrayList<>();
+    /** 总价，单位分 */
+    private long totalPrice;
+
+    public List<CartItem> getItems() {
+        return items;
+    }
+
+    public void setItems(List<CartItem> items) {
+        this.items = items;
+    }
+
+    public long getTotalPrice() {
+        return totalPrice;
+    }
+
+    public void setTotalPrice(long totalPrice) {
+        this.totalPrice = totalPrice;
+    }
+
+    /**
+     * @return true表示所有商品的库存都足够
+     */
+    public boolean isAllInStock() {
+        return items.stream().allMatch(CartItem::isInStock);
+    }
+}
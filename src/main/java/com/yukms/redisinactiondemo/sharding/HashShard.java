@@ -50,15 +50,27 @@ public class HashShard {
             shardId = Math.round(Double.valueOf(hashkey) / shardSize);
         } else {
             // 2. 对于不是整数的键，程序将基于预计的元素总数以及请求的分片数量，计算出实际所需的分片总数量
-            CRC32 crc32 = new CRC32();
-            crc32.update(hashkey.getBytes());
             // 这里为什么*2呢？
             long shards = Math.round(2.0D * totalElements / shardSize);
-            shardId = crc32.getValue() % shards;
+            shardId = shardId(hashkey, shards);
         }
         return MessageFormat.format(SHARD_KEY, key, shardId);
     }
 
+    /**
+     * 分片数量固定时，不管键是不是数字都使用键的CRC32散列值决定分片
+     *
+     * @param hashkey hash键
+     * @param shards  分片数量
+     * @return 分片ID，范围是[0, shards)
+     */
+    public long shardId(String hashkey, long shards) {
+        Objects.requireNonNull(hashkey);
+        CRC32 crc32 = new CRC32();
+        crc32.update(hashkey.getBytes());
+        return crc32.getValue() % shards;
+    }
+
     public void set(String key, String hashkey, String value, long totalElements, long shardSize) {
         String shardKey = shardKey(key, hashkey, totalElements, shardSize);
         HashOperations<String, String, String> hashOperations = stringRedisTemplate.opsForHash();
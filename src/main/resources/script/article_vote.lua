@@ -0,0 +1,26 @@
+-- 用户给文章投票
+-- KEYS[1] 文章散列, KEYS[2] 已投票用户集合, KEYS[3] 点赞有序集合, KEYS[4] 热度有序集合
+-- ARGV[1] 用户ID, ARGV[2] 投票截止时间之前发布的文章不能再投票, ARGV[3] 投票有效期（秒）, ARGV[4] 一票的热度, ARGV[5] 文章失效频道
+local time = redis.call('HGET', KEYS[1], 'time')
+if not time or tonumber(time) < tonumber(ARGV[2]) then
+    return 0
+end
+if redis.call('SADD', KEYS[2], ARGV[1]) == 0 then
+    return 0
+end
+-- 投票截止之后已投票用户集合就没用了
+redis.call('EXPIREAT', KEYS[2], tonumber(time) + tonumber(ARGV[3]))
+redis.call('HINCRBY', KEYS[1], 'votes', 1)
+redis.call('ZINCRBY', KEYS[3], 1, KEYS[1])
+redis.call('ZINCRBY', KEYS[4], ARGV[4], KEYS[1])
+-- 分组的有序集合在脚本里面拼出键名，所以这个脚本不能在集群模式下使用
+local groups = redis.call('HGET', KEYS[1], 'groups')
+if groups then
+    for group in string.gmatch(groups, '[^,]+') do
+        redis.call('ZINCRBY', KEYS[3] .. group, 1, KEYS[1])
+        redis.call('ZINCRBY', KEYS[4] .. group, ARGV[4], KEYS[1])
+    end
+end
+-- 通知所有节点删除近端缓存里面的这篇文章
+redis.call('PUBLISH', ARGV[5], KEYS[1])
+return 1
@@ -0,0 +1,20 @@
+-- 领取一批到期需要缓存的数据行，领取的数据行会被推迟到领取超时之后，所以多个缓存线程领取到的数据行不会重复
+-- KEYS[1] 调度有序集合, KEYS[2] 延迟有序集合
+-- ARGV[1] 当前时间戳, ARGV[2] 每批最多领取的行数, ARGV[3] 领取超时时间，单位秒
+-- 返回两个列表：领取的行ID和延迟值交替排列；延迟值不大于0、已经取消调度的行ID
+local rowIds = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+local claimed = {}
+local removed = {}
+for _, rowId in ipairs(rowIds) do
+    local delay = tonumber(redis.call('ZSCORE', KEYS[2], rowId))
+    if not delay or delay <= 0 then
+        redis.call('ZREM', KEYS[1], rowId)
+        redis.call('ZREM', KEYS[2], rowId)
+        table.insert(removed, rowId)
+    else
+        redis.call('ZADD', KEYS[1], tonumber(ARGV[1]) + tonumber(ARGV[3]), rowId)
+        table.insert(claimed, rowId)
+        table.insert(claimed, tostring(delay))
+    end
+end
+return { claimed, removed }
@@ -0,0 +1,40 @@
+-- 领取一批需要清理的最旧的令牌。领取的令牌仍然留在最后浏览页面记录里面，只在领取记录里面记下领取超时的时间，
+-- 所以多个清理线程领取到的令牌不会重复；清理失败的令牌在领取超时之后会被重新领取
+-- KEYS[1] 最后浏览页面记录, KEYS[2] 领取记录
+-- ARGV[1] 浏览页面记录最大条数, ARGV[2] 每批最多领取的令牌数, ARGV[3] 当前时间戳, ARGV[4] 领取超时时间，单位秒
+-- 返回领取的令牌和它在最后浏览页面记录里面的分值交替排列的列表
+local batch = tonumber(ARGV[2])
+local deadline = tonumber(ARGV[3]) + tonumber(ARGV[4])
+local claimed = {}
+-- 先重新领取超时的令牌
+local expired = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[3], 'LIMIT', 0, batch)
+for _, token in ipairs(expired) do
+    local score = redis.call('ZSCORE', KEYS[1], token)
+    if score then
+        redis.call('ZADD', KEYS[2], deadline, token)
+        table.insert(claimed, token)
+        table.insert(claimed, score)
+    else
+        redis.call('ZREM', KEYS[2], token)
+    end
+end
+-- 已经被领取的令牌不算在需要清理的数量里面
+local pending = redis.call('ZCARD', KEYS[2])
+local count = math.min(redis.call('ZCARD', KEYS[1]) - pending - tonumber(ARGV[1]), batch - #claimed / 2)
+if count <= 0 then
+    return claimed
+end
+-- 最旧的count + pending个令牌里面至少有count个还没有被领取
+local tokens = redis.call('ZRANGE', KEYS[1], 0, count + pending - 1, 'WITHSCORES')
+for i = 1, #tokens, 2 do
+    if count <= 0 then
+        break
+    end
+    if not redis.call('ZSCORE', KEYS[2], tokens[i]) then
+        redis.call('ZADD', KEYS[2], deadline, tokens[i])
+        table.insert(claimed, tokens[i])
+        table.insert(claimed, tokens[i + 1])
+        count = count - 1
+    end
+end
+return claimed
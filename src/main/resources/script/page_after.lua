@@ -0,0 +1,15 @@
+-- 从上一页的最后一个成员之后继续分页，分值相同的成员按成员排序
+-- KEYS[1] 有序集合
+-- ARGV[1] 上一页最后一个成员的分值, ARGV[2] 上一页最后一个成员, ARGV[3] 每页的数量, ARGV[4] 1表示分值从大到小
+-- 返回成员和分值交替排列的列表；上一页最后一个成员已经被删除或者分值已经改变时返回nil
+local score = redis.call('ZSCORE', KEYS[1], ARGV[2])
+if not score or tonumber(score) ~= tonumber(ARGV[1]) then
+    return false
+end
+local count = tonumber(ARGV[3])
+if ARGV[4] == '1' then
+    local rank = redis.call('ZREVRANK', KEYS[1], ARGV[2])
+    return redis.call('ZREVRANGE', KEYS[1], rank + 1, rank + count, 'WITHSCORES')
+end
+local rank = redis.call('ZRANK', KEYS[1], ARGV[2])
+return redis.call('ZRANGE', KEYS[1], rank + 1, rank + count, 'WITHSCORES')
@@ -0,0 +1,7 @@
+-- 只有锁的值还是自己设置的值时才删除，避免删除锁过期之后被其他客户端取得的锁
+-- KEYS[1] 锁
+-- ARGV[1] 加锁时设置的值
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,12 @@
+-- 清理成功之后释放领取的令牌：从领取记录里面删除，分值没有变化的令牌再从最后浏览页面记录里面删除，
+-- 领取之后又浏览过页面的令牌分值会变大，保留它的记录
+-- KEYS[1] 最后浏览页面记录, KEYS[2] 领取记录
+-- ARGV 领取的令牌和领取时的分值交替排列
+for i = 1, #ARGV, 2 do
+    redis.call('ZREM', KEYS[2], ARGV[i])
+    local score = redis.call('ZSCORE', KEYS[1], ARGV[i])
+    if score and tonumber(score) == tonumber(ARGV[i + 1]) then
+        redis.call('ZREM', KEYS[1], ARGV[i])
+    end
+end
+return #ARGV / 2
@@ -0,0 +1,6 @@
+-- 删除浏览次数排行榜里面排名靠后的商品，再把剩余商品的浏览次数减半
+-- KEYS[1] 商品浏览次数
+-- ARGV[1] 保留的商品数量
+local removed = redis.call('ZREMRANGEBYRANK', KEYS[1], 0, -(tonumber(ARGV[1]) + 1))
+redis.call('ZINTERSTORE', KEYS[1], 1, KEYS[1], 'WEIGHTS', 0.5)
+return removed
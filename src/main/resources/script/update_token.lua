@@ -0,0 +1,42 @@
+-- 更新令牌以及用户浏览记录
+-- KEYS[1] 用户散列, KEYS[2] 最后浏览页面记录, KEYS[3] 用户浏览过的商品, KEYS[4] 商品浏览次数
+-- 使用Count-Min Sketch统计浏览次数时：KEYS[4] sketch, KEYS[5] 浏览次数最多的商品
+-- ARGV[1] 令牌, ARGV[2] 用户ID，为空字符串时不更新用户散列和最后浏览页面记录（异步模式下已经由请求线程写入）
+-- ARGV[3] 时间戳, ARGV[4] 商品ID，不是商品页面时为空字符串
+-- 使用Count-Min Sketch统计浏览次数时：ARGV[5] 保留的商品数量, ARGV[6..] 商品在每一行的计数器下标
+if ARGV[2] ~= '' then
+    redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])
+    redis.call('ZADD', KEYS[2], ARGV[3], ARGV[1])
+end
+if ARGV[4] ~= '' then
+    redis.call('ZADD', KEYS[3], ARGV[3], ARGV[4])
+    -- 只保留最近浏览的25件商品
+    redis.call('ZREMRANGEBYRANK', KEYS[3], 0, -26)
+    if #KEYS == 4 then
+        redis.call('ZINCRBY', KEYS[4], 1, ARGV[4])
+    else
+        local args = { 'OVERFLOW', 'SAT' }
+        for i = 6, #ARGV do
+            table.insert(args, 'INCRBY')
+            table.insert(args, 'u32')
+            table.insert(args, '#' .. ARGV[i])
+            table.insert(args, 1)
+        end
+        local counts = redis.call('BITFIELD', KEYS[4], unpack(args))
+        local estimate = counts[1]
+        for i = 2, #counts do
+            estimate = math.min(estimate, counts[i])
+        end
+        -- 浏览次数最多的商品组成一个小顶堆，新商品的估计值超过堆顶时替换堆顶
+        if redis.call('ZSCORE', KEYS[5], ARGV[4]) or redis.call('ZCARD', KEYS[5]) < tonumber(ARGV[5]) then
+            redis.call('ZADD', KEYS[5], estimate, ARGV[4])
+        else
+            local min = redis.call('ZRANGE', KEYS[5], 0, 0, 'WITHSCORES')
+            if estimate > tonumber(min[2]) then
+                redis.call('ZREM', KEYS[5], min[1])
+                redis.call('ZADD', KEYS[5], estimate, ARGV[4])
+            end
+        end
+    end
+end
+return 1
@@ -0,0 +1,39 @@
+-- 把Count-Min Sketch里面从ARGV[1]开始的ARGV[2]个计数器减半，第一段还会把浏览次数最多的商品的分值减半
+-- 每次只处理一段计数器，单次调用阻塞服务器的时间有上限，整个sketch分多次调用完成
+-- KEYS[1] sketch, KEYS[2] 浏览次数最多的商品
+-- ARGV[1] 第一个计数器的下标, ARGV[2] 计数器数量，不能超过1000，否则unpack的参数太多
+-- 返回0表示sketch在这一段之后已经没有数据
+local start = tonumber(ARGV[1])
+local count = tonumber(ARGV[2])
+if start == 0 then
+    redis.call('ZINTERSTORE', KEYS[2], 1, KEYS[2], 'WEIGHTS', 0.5)
+end
+-- BITFIELD只会把字符串扩展到写过的最大下标，后面的计数器都是0
+local length = redis.call('STRLEN', KEYS[1])
+if start * 4 >= length then
+    return 0
+end
+count = math.min(count, math.floor((length - start * 4 + 3) / 4))
+local get = {}
+for i = start, start + count - 1 do
+    table.insert(get, 'GET')
+    table.insert(get, 'u32')
+    table.insert(get, '#' .. i)
+end
+local counts = redis.call('BITFIELD', KEYS[1], unpack(get))
+local set = {}
+for i, value in ipairs(counts) do
+    if value > 0 then
+        table.insert(set, 'SET')
+        table.insert(set, 'u32')
+        table.insert(set, '#' .. (start + i - 1))
+        table.insert(set, math.floor(value / 2))
+    end
+end
+if #set > 0 then
+    redis.call('BITFIELD', KEYS[1], unpack(set))
+end
+if (start + count) * 4 >= length then
+    return 0
+end
+return 1
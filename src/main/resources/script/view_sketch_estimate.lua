@@ -0,0 +1,15 @@
+-- 查询Count-Min Sketch里面商品的浏览次数估计值，取所有行的最小值
+-- KEYS[1] sketch
+-- ARGV[1..] 商品在每一行的计数器下标
+local args = {}
+for i = 1, #ARGV do
+    table.insert(args, 'GET')
+    table.insert(args, 'u32')
+    table.insert(args, '#' .. ARGV[i])
+end
+local counts = redis.call('BITFIELD', KEYS[1], unpack(args))
+local estimate = counts[1]
+for i = 2, #counts do
+    estimate = math.min(estimate, counts[i])
+end
+return estimate
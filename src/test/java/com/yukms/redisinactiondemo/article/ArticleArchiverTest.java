@@ -0,0 +1,77 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * @author yukms 2019/1/24
+ */
+public class ArticleArchiverTest extends BaseRedisServiceTest {
+    @Autowired
+    private ArticleService articleService;
+    @Autowired
+    private ArticleArchiver articleArchiver;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @After
+    public void reset() {
+        articleArchiver.setBatchSize(100);
+        articleArchiver.setExpectedArticles(102400);
+    }
+
+    @Test
+    public void test_bucketCount() {
+        Assert.assertEquals(1024, articleArchiver.bucketCount());
+        articleArchiver.setExpectedArticles(1000000);
+        Assert.assertEquals(10000, articleArchiver.bucketCount());
+        articleArchiver.setExpectedArticles(0);
+        Assert.assertEquals(1, articleArchiver.bucketCount());
+    }
+
+    @Test
+    public void test_archive() {
+        articleArchiver.setBatchSize(1);
+        articleService.add(Arrays.asList(newArticle("1", 1546272000L), newArticle("2", SystemUtil.getNowTimetamp())));
+        Assert.assertEquals(1, articleArchiver.archive());
+
+        Assert.assertEquals(1, articleService.get("votes", "design").size());
+        Optional<Article> archived = articleArchiver.load("1");
+        Assert.assertTrue(archived.isPresent());
+        Assert.assertEquals("article 1", archived.get().getTitle());
+        Assert.assertFalse(articleArchiver.load("2").isPresent());
+        // 同一个周期的租约已经被占用
+        Assert.assertEquals(-1, articleArchiver.archive());
+    }
+
+    @Test
+    public void test_archive_skips_orphans() {
+        articleArchiver.setBatchSize(2);
+        articleService.add(Collections.singletonList(newArticle("3", 1546272000L)));
+        // 散列已经不存在、只留在时间有序集合里面的文章
+        stringRedisTemplate.opsForZSet().add("time:", "article:1", 1L);
+        stringRedisTemplate.opsForZSet().add("time:", "article:2", 2L);
+        Assert.assertEquals(1, articleArchiver.archive());
+        Assert.assertTrue(articleArchiver.load("3").isPresent());
+        Assert.assertEquals(0L, (long) stringRedisTemplate.opsForZSet().zCard("time:"));
+    }
+
+    private Article newArticle(String id, long time) {
+        Article article = new Article();
+        article.setId(id);
+        article.setTitle("article " + id);
+        article.setTime(time);
+        article.setGroups(Arrays.asList("design"));
+        return article;
+    }
+}
@@ -0,0 +1,86 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.common.util.AverageTimer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 比较文章散列和紧凑编码的内存占用以及读取一页文章的解码耗时
+ *
+ * @author yukms 2019/1/24
+ */
+public class ArticleCodecTest extends BaseRedisServiceTest {
+    @Autowired
+    private ArticleService articleService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    private static final int ARTICLES = 1000;
+    private static final int PAGE_SIZE = 50;
+    private static final int TIMES = 100;
+
+    @Test
+    public void test_encode_and_decode() {
+        Article article = newArticle(1);
+        Article decoded = ArticleCodec.decode(ArticleCodec.encode(article));
+        Assert.assertEquals(article.getId(), decoded.getId());
+        Assert.assertEquals(article.getTitle(), decoded.getTitle());
+        Assert.assertEquals(article.getTime(), decoded.getTime());
+        Assert.assertEquals(article.getVotes(), decoded.getVotes());
+        Assert.assertEquals(article.getGroups(), decoded.getGroups());
+    }
+
+    @Test
+    public void test_memory_usage() {
+        List<Article> articles = new ArrayList<>();
+        for (int i = 0; i < ARTICLES; i++) {
+            articles.add(newArticle(i));
+        }
+        articleService.add(articles);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Article article : articles) {
+                connection.set(("compact:" + article.getId()).getBytes(StandardCharsets.UTF_8),
+                    ArticleCodec.encode(article));
+            }
+            return null;
+        });
+        System.out.println("The hash layout uses " + memoryUsage("article:1") + " bytes per article.");
+        System.out.println("The compact layout uses " + memoryUsage("compact:1") + " bytes per article.");
+
+        AverageTimer.time("hash page", TIMES,
+            time -> articleService.get("votes", "design", null, PAGE_SIZE, SortDirection.DESC));
+        AverageTimer.time("compact page", TIMES, time -> {
+            byte[][] keys = new byte[PAGE_SIZE][];
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                keys[i] = ("compact:" + i).getBytes(StandardCharsets.UTF_8);
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection
+                .mGet(keys));
+            values.forEach(ArticleCodec::decode);
+        });
+    }
+
+    private Object memoryUsage(String key) {
+        return stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection
+            .execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Article newArticle(int id) {
+        Article article = new Article();
+        article.setId(String.valueOf(id));
+        article.setTitle("设计模式之创建型模式 " + id);
+        article.setTime(1546272000L + id);
+        article.setVotes(id % 100);
+        article.setGroups(Arrays.asList("design", "java"));
+        return article;
+    }
+}
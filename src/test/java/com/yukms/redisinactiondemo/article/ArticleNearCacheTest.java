@@ -0,0 +1,94 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.util.Collections;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 开启文章近端缓存，过期时间足够长，缓存的文章只会因为失效消息被删除
+ *
+ * @author yukms 2019/1/25
+ */
+@TestPropertySource(properties = {"article.near-cache.enabled=true", "article.near-cache.ttl-millis=60000"})
+public class ArticleNearCacheTest extends BaseRedisServiceTest {
+    @Autowired
+    private ArticleService articleService;
+    @Autowired
+    private ArticleNearCache nearCache;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void test_hitRatio() throws InterruptedException {
+        add(newArticle("1"));
+        long hits = nearCache.getHits();
+        long misses = nearCache.getMisses();
+        Assert.assertEquals(1, articleService.get("votes", "redis").size());
+        Assert.assertEquals(misses + 1, nearCache.getMisses());
+        Assert.assertEquals(1, articleService.get("votes", "redis").size());
+        Assert.assertEquals(hits + 1, nearCache.getHits());
+        Assert.assertTrue(nearCache.getHitRatio() > 0D && nearCache.getHitRatio() < 1D);
+    }
+
+    /**
+     * 其他节点修改文章之后发布的失效消息会删除本地缓存的文章
+     */
+    @Test
+    public void test_invalidate() throws InterruptedException {
+        add(newArticle("2"));
+        Assert.assertEquals("Redis in action", articleService.get("votes", "redis").get(0).getTitle());
+        stringRedisTemplate.opsForHash().put("article:2", "title", "Redis in practice");
+        Assert.assertEquals("Redis in action", articleService.get("votes", "redis").get(0).getTitle());
+        stringRedisTemplate.convertAndSend(ArticleNearCache.CHANNEL, "article:2");
+        String title = null;
+        for (int i = 0; i < 40 && !"Redis in practice".equals(title); i++) {
+            Thread.sleep(50);
+            title = articleService.get("votes", "redis").get(0).getTitle();
+        }
+        Assert.assertEquals("Redis in practice", title);
+    }
+
+    /**
+     * 读取期间收到失效消息时，读到的文章不会留在缓存里
+     */
+    @Test
+    public void test_put_afterInvalidate() {
+        Article article = newArticle("3");
+        long generation = nearCache.generation("article:3");
+        nearCache.invalidate("article:3");
+        nearCache.put("article:3", article, generation);
+        Assert.assertNull(nearCache.get("article:3"));
+        nearCache.put("article:3", article, nearCache.generation("article:3"));
+        Assert.assertNotNull(nearCache.get("article:3"));
+        nearCache.invalidate("article:3");
+    }
+
+    /**
+     * 添加文章并等待本节点收到添加时发布的失效消息，之后读取的文章不会再被这条消息删除
+     */
+    private void add(Article article) throws InterruptedException {
+        String key = "article:" + article.getId();
+        long generation = nearCache.generation(key);
+        articleService.add(Collections.singletonList(article));
+        for (int i = 0; i < 40 && nearCache.generation(key) == generation; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    private Article newArticle(String id) {
+        Article article = new Article();
+        article.setId(id);
+        article.setTitle("Redis in action");
+        article.setTime(SystemUtil.getNowTimetamp());
+        article.setGroups(Collections.singletonList("redis"));
+        article.setVotes(0);
+        return article;
+    }
+}
@@ -4,19 +4,27 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.yukms.redisinactiondemo.BaseRedisServiceTest;
 import com.yukms.redisinactiondemo.article.entity.Article;
+import com.yukms.redisinactiondemo.article.entity.ArticlePage;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
 import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 public class ArticleServiceTest extends BaseRedisServiceTest {
     @Autowired
     private ArticleService articleService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
 
     @Test
     public void test_add() {
@@ -27,6 +35,15 @@ public class ArticleServiceTest extends BaseRedisServiceTest {
         Assert.assertEquals(3, articles2.size());
     }
 
+    @Test
+    public void test_add_stream() {
+        long total = articleService.add(getArticles().stream(), 2);
+        Assert.assertEquals(3, total);
+        List<Article> articles = articleService.get("votes", "design");
+        Assert.assertEquals(3, articles.size());
+        Assert.assertEquals("设计模式之创建型模式", articles.get(2).getTitle());
+    }
+
     @Test
     public void test_get() {
         articleService.add(getArticles());
@@ -42,7 +59,155 @@ public class ArticleServiceTest extends BaseRedisServiceTest {
         Assert.assertEquals("1", articles2.get(1).getId());
         Article article = articles2.get(2);
         Assert.assertEquals("3", article.getId());
-        Assert.assertEquals("3", article.getVotes());
+        Assert.assertEquals(3, article.getVotes());
+    }
+
+    @Test
+    public void test_get_by_time() {
+        articleService.add(getArticles());
+        articleService.vote("2");
+        List<Article> articles = articleService.get("time", "design");
+        Assert.assertEquals("2", articles.get(0).getId());
+        Assert.assertEquals(3, articles.get(0).getVotes());
+        Assert.assertEquals("1", articles.get(1).getId());
+        Assert.assertEquals("3", articles.get(2).getId());
+    }
+
+    @Test
+    public void test_get_page() {
+        articleService.add(getArticles());
+        ArticlePage page = articleService.get("votes", "design", null, 2, SortDirection.DESC);
+        Assert.assertEquals(2, page.getArticles().size());
+        Assert.assertEquals("1", page.getArticles().get(0).getId());
+        Assert.assertEquals("2", page.getArticles().get(1).getId());
+        Assert.assertNotNull(page.getNextCursor());
+
+        articleService.vote("1");
+        ArticlePage page2 = articleService.get("votes", "design", page.getNextCursor(), 2, SortDirection.DESC);
+        Assert.assertEquals(1, page2.getArticles().size());
+        Assert.assertEquals("3", page2.getArticles().get(0).getId());
+        Assert.assertNull(page2.getNextCursor());
+    }
+
+    @Test
+    public void test_get_page_when_ties_change() {
+        articleService.add(getTiedArticles());
+        ArticlePage page = articleService.get("votes", "tie", null, 2, SortDirection.DESC);
+        Assert.assertEquals("3", page.getArticles().get(0).getId());
+        Assert.assertEquals("2", page.getArticles().get(1).getId());
+
+        // 文章4的分值变得和游标相同，排到了已经返回的文章前面
+        articleService.vote("4");
+        ArticlePage page2 = articleService.get("votes", "tie", page.getNextCursor(), 2, SortDirection.DESC);
+        Assert.assertEquals("1", page2.getArticles().get(0).getId());
+        Assert.assertEquals("5", page2.getArticles().get(1).getId());
+    }
+
+    @Test
+    public void test_get_page_when_last_article_moves() {
+        articleService.add(getTiedArticles());
+        ArticlePage page = articleService.get("votes", "tie", null, 2, SortDirection.DESC);
+        Assert.assertEquals("2", page.getArticles().get(1).getId());
+
+        // 上一页最后一篇文章的分值变了，按游标的分值和键继续读取
+        articleService.vote("2");
+        ArticlePage page2 = articleService.get("votes", "tie", page.getNextCursor(), 2, SortDirection.DESC);
+        Assert.assertEquals("1", page2.getArticles().get(0).getId());
+        Assert.assertEquals("4", page2.getArticles().get(1).getId());
+        ArticlePage page3 = articleService.get("votes", "tie", page2.getNextCursor(), 2, SortDirection.DESC);
+        Assert.assertEquals(1, page3.getArticles().size());
+        Assert.assertEquals("5", page3.getArticles().get(0).getId());
+        Assert.assertNull(page3.getNextCursor());
+    }
+
+    @Test
+    public void test_get_hot() {
+        articleService.add(getArticles());
+        ArticlePage page = articleService.get("hot", "design", null, 10, SortDirection.DESC);
+        Assert.assertEquals("3", page.getArticles().get(0).getId());
+        Assert.assertEquals("1", page.getArticles().get(1).getId());
+        Assert.assertEquals("2", page.getArticles().get(2).getId());
+    }
+
+    @Test
+    public void test_query() {
+        articleService.add(getArticles());
+        Article article = new Article();
+        article.setId("4");
+        article.setTitle("Redis in action");
+        article.setTime(time2Long("2019-01-07T10:15:30"));
+        article.setGroups(Arrays.asList("design", "redis"));
+        article.setVotes(5);
+        articleService.add(Collections.singletonList(article));
+
+        ArticlePage and = articleService.query("votes", GroupQuery.and("design", "redis"), null, 10,
+            SortDirection.DESC);
+        Assert.assertEquals(1, and.getArticles().size());
+        Assert.assertEquals("4", and.getArticles().get(0).getId());
+        ArticlePage or = articleService.query("votes", GroupQuery.or("redis", "design"), null, 10,
+            SortDirection.DESC);
+        Assert.assertEquals(4, or.getArticles().size());
+        Assert.assertEquals("4", or.getArticles().get(0).getId());
+        Assert.assertEquals(5, or.getArticles().get(0).getVotes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_query_without_groups() {
+        GroupQuery.and(new String[0]);
+    }
+
+    @Test
+    public void test_query_canonical_form() {
+        Assert.assertEquals(GroupQuery.and("redis", "design").toString(),
+            GroupQuery.and("design", "redis").toString());
+        GroupQuery nested = GroupQuery.and(GroupQuery.or("a", "b"), GroupQuery.group("c"));
+        GroupQuery named = GroupQuery.and(GroupQuery.group("(a OR b)"), GroupQuery.group("c"));
+        Assert.assertNotEquals(nested.toString(), named.toString());
+    }
+
+    @Test
+    public void test_vote_once_per_user() {
+        Article article = new Article();
+        article.setId("4");
+        article.setTitle("Redis in action");
+        article.setTime(SystemUtil.getNowTimetamp());
+        article.setGroups(Collections.singletonList("redis"));
+        article.setVotes(0);
+        articleService.add(Collections.singletonList(article));
+        Assert.assertTrue(articleService.vote("4", "yukms"));
+        Assert.assertFalse(articleService.vote("4", "yukms"));
+        Assert.assertTrue(articleService.vote("4", "hanekawa"));
+        Assert.assertEquals(2, articleService.get("votes", "redis").get(0).getVotes());
+    }
+
+    @Test
+    public void test_vote_after_window() {
+        articleService.add(getArticles());
+        Assert.assertFalse(articleService.vote("3", "yukms"));
+    }
+
+    /**
+     * 给已经删除的文章和不存在的文章点赞不会重新创建文章散列和索引
+     */
+    @Test
+    public void test_incrementVotes_removed() {
+        List<Article> articles = getArticles();
+        articleService.add(articles);
+        articleService.remove(Collections.singletonList(articles.get(2)));
+        Map<String, Long> votes = new HashMap<>();
+        votes.put("1", 2L);
+        votes.put("3", 1L);
+        votes.put("9", 1L);
+        articleService.incrementVotes(votes);
+        articleService.vote("3");
+        Assert.assertFalse(stringRedisTemplate.hasKey("article:3"));
+        Assert.assertFalse(stringRedisTemplate.hasKey("article:9"));
+        Assert.assertNull(stringRedisTemplate.opsForZSet().score("votes:", "article:3"));
+        Assert.assertNull(stringRedisTemplate.opsForZSet().score("score:design", "article:3"));
+        List<Article> design = articleService.get("votes", "design");
+        Assert.assertEquals(2, design.size());
+        Assert.assertEquals("1", design.get(1).getId());
+        Assert.assertEquals(5, design.get(1).getVotes());
     }
 
     private List<Article> getArticles() {
@@ -50,28 +215,46 @@ public class ArticleServiceTest extends BaseRedisServiceTest {
         Article article1 = new Article();
         article1.setId("1");
         article1.setTitle("设计模式之创建型模式");
-        article1.setTime(time2LongString("2013-12-03T10:15:30"));
+        article1.setTime(time2Long("2013-12-03T10:15:30"));
         article1.setGroups(groups);
-        article1.setVotes("3");
+        article1.setVotes(3);
         Article article2 = new Article();
         article2.setId("2");
         article2.setTitle("设计模式之结构型模式");
-        article2.setTime(time2LongString("2011-12-03T10:15:30"));
+        article2.setTime(time2Long("2011-12-03T10:15:30"));
         article2.setGroups(groups);
-        article2.setVotes("2");
+        article2.setVotes(2);
         Article article3 = new Article();
         article3.setId("3");
         article3.setTitle("New year new bug");
-        article3.setTime(time2LongString("2018-12-03T10:15:30"));
+        article3.setTime(time2Long("2018-12-03T10:15:30"));
         article3.setGroups(groups);
-        article3.setVotes("1");
+        article3.setVotes(1);
         return Arrays.asList(article1, article2, article3);
     }
 
-    private String time2LongString(String time) {
+    /**
+     * 文章1到3的点赞数相同，按点赞数从大到小排列时顺序是3、2、1、4、5
+     */
+    private List<Article> getTiedArticles() {
+        long[] votes = {3, 3, 3, 2, 1};
+        List<Article> articles = new ArrayList<>();
+        for (int i = 0; i < votes.length; i++) {
+            Article article = new Article();
+            article.setId(String.valueOf(i + 1));
+            article.setTitle("Tie " + (i + 1));
+            article.setTime(time2Long("2018-12-03T10:15:30"));
+            article.setGroups(Collections.singletonList("tie"));
+            article.setVotes(votes[i]);
+            articles.add(article);
+        }
+        return articles;
+    }
+
+    private long time2Long(String time) {
         Instant instant = Instant.now();
         ZoneId systemZoneId = ZoneId.systemDefault();
         ZoneOffset zoneOffset = systemZoneId.getRules().getOffset(instant);
-        return String.valueOf(LocalDateTime.parse(time).toEpochSecond(zoneOffset));
+        return LocalDateTime.parse(time).toEpochSecond(zoneOffset);
     }
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package com.yukms.redisinactiondemo.article;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import com.yukms.redisinactiondemo.article.entity.Article;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * @author yukms 2019/1/24
+ */
+public class VoteBufferTest extends BaseRedisServiceTest {
+    @Autowired
+    private ArticleService articleService;
+    @Autowired
+    private VoteBuffer voteBuffer;
+
+    @Test
+    public void test_flush() {
+        Article article = new Article();
+        article.setId("1");
+        article.setTitle("hot");
+        article.setTime(1546272000L);
+        article.setVotes(0);
+        article.setGroups(Collections.singletonList("hot"));
+        articleService.add(Collections.singletonList(article));
+        voteBuffer.setEnabled(true);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                voteBuffer.vote("1");
+            }
+            voteBuffer.flush();
+            Assert.assertEquals(0, voteBuffer.getPendingVotes());
+            List<Article> articles = articleService.get("votes", "hot");
+            Assert.assertEquals(1000, articles.get(0).getVotes());
+            // 一个刷新周期没有收到点赞的计数器会被删除
+            voteBuffer.flush();
+            Assert.assertEquals(0, voteBuffer.getCounters());
+        } finally {
+            voteBuffer.setEnabled(false);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * @author yukms 2019/1/25
+ */
+public class DateCacheServiceTest extends BaseRedisServiceTest {
+    @Autowired
+    private DateCacheService dateCacheService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void test_cacheRowBatch() {
+        for (int i = 0; i < 10; i++) {
+            dateCacheService.scheduleRowCache("row" + i, 10);
+        }
+        dateCacheService.scheduleRowCache("cancelled", 0);
+        stringRedisTemplate.opsForValue().set("inv:cancelled", "{}");
+        Assert.assertEquals(11, dateCacheService.cacheRowBatch());
+        Assert.assertEquals(0, dateCacheService.cacheRowBatch());
+        Assert.assertEquals(0L, dateCacheService.getRefreshLagSeconds());
+        Assert.assertTrue(stringRedisTemplate.hasKey("inv:row0"));
+        Assert.assertFalse(stringRedisTemplate.hasKey("inv:cancelled"));
+        Assert.assertEquals(10L, (long) stringRedisTemplate.opsForZSet().size("schedule:"));
+        Assert.assertTrue(stringRedisTemplate.opsForZSet().score("schedule:", "row0") >=
+            SystemUtil.getNowTimetamp() + 9);
+    }
+
+    /**
+     * 读取失败的数据行保留原来的缓存，{@code retry-seconds}秒之后重试，同一批的其他数据行照常写入
+     */
+    @Test
+    public void test_cacheRowBatch_queryFailed() {
+        DateCacheService failingService = new DateCacheService() {
+            @Override
+            public Row queryRow(String rowId) {
+                if ("bad".equals(rowId)) {
+                    throw new IllegalStateException("database unavailable");
+                }
+                return super.queryRow(rowId);
+            }
+        };
+        ReflectionTestUtils.setField(failingService, "stringRedisTemplate", stringRedisTemplate);
+        failingService.init();
+        try {
+            for (int i = 0; i < 5; i++) {
+                failingService.scheduleRowCache("row" + i, 60);
+            }
+            failingService.scheduleRowCache("bad", 60);
+            stringRedisTemplate.opsForValue().set("inv:bad", "{}");
+            long before = SystemUtil.getNowTimetamp();
+            Assert.assertEquals(6, failingService.cacheRowBatch());
+            long after = SystemUtil.getNowTimetamp();
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(stringRedisTemplate.hasKey("inv:row" + i));
+                Assert.assertTrue(stringRedisTemplate.opsForZSet().score("schedule:", "row" + i) >= before + 60);
+            }
+            Assert.assertEquals("{}", stringRedisTemplate.opsForValue().get("inv:bad"));
+            double retryAt = stringRedisTemplate.opsForZSet().score("schedule:", "bad");
+            Assert.assertTrue(retryAt >= before + 5);
+            Assert.assertTrue(retryAt <= after + 5);
+        } finally {
+            failingService.destroy();
+        }
+    }
+}
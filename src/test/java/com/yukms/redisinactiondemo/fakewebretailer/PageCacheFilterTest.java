@@ -0,0 +1,211 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @author yukms 2019/1/25
+ */
+public class PageCacheFilterTest extends BaseRedisServiceTest {
+    @Autowired
+    private PageCacheService pageCacheService;
+    private PageCacheFilter filter;
+    private PageServlet servlet;
+
+    @Before
+    public void setUp() {
+        filter = new PageCacheFilter(pageCacheService);
+        servlet = new PageServlet();
+    }
+
+    /**
+     * 命中时不再调用控制器，控制器设置的响应头和页面一起返回
+     */
+    @Test
+    public void test_doFilter_cached() throws Exception {
+        MockHttpServletResponse first = doFilter(new MockHttpServletRequest("GET", "/page"));
+        Assert.assertEquals(200, first.getStatus());
+        Assert.assertEquals("<p>/page</p>", first.getContentAsString());
+        Assert.assertNotNull(first.getHeader("ETag"));
+        MockHttpServletResponse second = doFilter(new MockHttpServletRequest("GET", "/page"));
+        Assert.assertEquals(1, servlet.calls.get());
+        Assert.assertEquals("<p>/page</p>", second.getContentAsString());
+        Assert.assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+        Assert.assertEquals("max-age=60", second.getHeader("Cache-Control"));
+        Assert.assertEquals("Accept-Language", second.getHeader("Vary"));
+    }
+
+    /**
+     * 浏览器缓存的ETag和元数据里面的相同时直接返回304，不读取页面也不调用控制器
+     */
+    @Test
+    public void test_doFilter_notModified() throws Exception {
+        String etag = doFilter(new MockHttpServletRequest("GET", "/page")).getHeader("ETag");
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/page");
+        request.addHeader("If-None-Match", etag);
+        MockHttpServletResponse response = doFilter(request);
+        Assert.assertEquals(304, response.getStatus());
+        Assert.assertEquals(etag, response.getHeader("ETag"));
+        Assert.assertEquals(0, response.getContentAsByteArray().length);
+        Assert.assertEquals(1, servlet.calls.get());
+    }
+
+    /**
+     * 状态码不是200或者设置了Cookie的响应原样返回，不缓存
+     */
+    @Test
+    public void test_doFilter_notCacheable() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletResponse missing = doFilter(new MockHttpServletRequest("GET", "/missing"));
+            Assert.assertEquals(404, missing.getStatus());
+            Assert.assertEquals("missing", missing.getContentAsString());
+            MockHttpServletResponse cookie = doFilter(new MockHttpServletRequest("GET", "/cookie"));
+            Assert.assertEquals(200, cookie.getStatus());
+            Assert.assertEquals("session=1", cookie.getHeader("Set-Cookie"));
+        }
+        Assert.assertEquals(4, servlet.calls.get());
+        Assert.assertNull(pageCacheService.getETag(new MockHttpServletRequest("GET", "/missing")));
+        Assert.assertNull(pageCacheService.getETag(new MockHttpServletRequest("GET", "/cookie")));
+    }
+
+    /**
+     * 带有Authorization头的请求直接交给控制器
+     */
+    @Test
+    public void test_doFilter_privateRequest() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/page");
+            request.addHeader("Authorization", "Basic eXVrbXM6");
+            MockHttpServletResponse response = doFilter(request);
+            Assert.assertEquals("<p>/page</p>", response.getContentAsString());
+            Assert.assertNull(response.getHeader("ETag"));
+        }
+        Assert.assertEquals(2, servlet.calls.get());
+        Assert.assertNull(pageCacheService.getETag(new MockHttpServletRequest("GET", "/page")));
+    }
+
+    @Test
+    public void test_doFilter_servletException() throws Exception {
+        try {
+            doFilter(new MockHttpServletRequest("GET", "/error"));
+            Assert.fail();
+        } catch (ServletException e) {
+            Assert.assertEquals("broken", e.getMessage());
+        }
+    }
+
+    /**
+     * 同时等待的请求拿到生成的页面；页面不能缓存时等待的请求自己再调用一次控制器
+     */
+    @Test
+    public void test_doFilter_waiters() throws Exception {
+        MockHttpServletResponse[] page = doFilterConcurrently("/page");
+        Assert.assertEquals(1, servlet.calls.get());
+        for (MockHttpServletResponse response : page) {
+            Assert.assertEquals(200, response.getStatus());
+            Assert.assertEquals("<p>/page</p>", response.getContentAsString());
+            Assert.assertEquals("max-age=60", response.getHeader("Cache-Control"));
+        }
+        MockHttpServletResponse[] missing = doFilterConcurrently("/missing");
+        Assert.assertEquals(3, servlet.calls.get());
+        for (MockHttpServletResponse response : missing) {
+            Assert.assertEquals(404, response.getStatus());
+            Assert.assertEquals("missing", response.getContentAsString());
+        }
+    }
+
+    /**
+     * 第一个请求生成页面时阻塞，等第二个请求开始等待之后再放行
+     */
+    private MockHttpServletResponse[] doFilterConcurrently(String uri) throws Exception {
+        servlet.gate = new CountDownLatch(1);
+        int calls = servlet.calls.get();
+        long waits = pageCacheService.getSingleFlightWaits();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<MockHttpServletResponse> leader = executor.submit(
+                () -> doFilter(new MockHttpServletRequest("GET", uri)));
+            for (int i = 0; i < 100 && servlet.calls.get() == calls; i++) {
+                Thread.sleep(20);
+            }
+            Future<MockHttpServletResponse> waiter = executor.submit(
+                () -> doFilter(new MockHttpServletRequest("GET", uri)));
+            for (int i = 0; i < 100 && pageCacheService.getSingleFlightWaits() == waits; i++) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(waits + 1, pageCacheService.getSingleFlightWaits());
+            servlet.gate.countDown();
+            return new MockHttpServletResponse[] {leader.get(5, TimeUnit.SECONDS), waiter.get(5, TimeUnit.SECONDS)};
+        } finally {
+            servlet.gate = null;
+            executor.shutdownNow();
+        }
+    }
+
+    private MockHttpServletResponse doFilter(MockHttpServletRequest request) throws ServletException, IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain(servlet));
+        return response;
+    }
+
+    /**
+     * /missing返回404，/cookie设置Cookie，/error抛出ServletException，其他路径返回带缓存头的页面
+     */
+    private static class PageServlet extends HttpServlet {
+        private static final long serialVersionUID = 3165391093853213127L;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile CountDownLatch gate;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            calls.incrementAndGet();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String body;
+            switch (req.getRequestURI()) {
+                case "/missing":
+                    resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    body = "missing";
+                    break;
+                case "/cookie":
+                    resp.setHeader("Set-Cookie", "session=1");
+                    body = "cookie";
+                    break;
+                case "/error":
+                    throw new ServletException("broken");
+                default:
+                    resp.setHeader("Cache-Control", "max-age=60");
+                    resp.setHeader("Vary", "Accept-Language");
+                    body = "<p>" + req.getRequestURI() + "</p>";
+            }
+            resp.setContentType("text/html;charset=UTF-8");
+            resp.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 开启一级缓存和分布式锁，一级缓存的缓存时间是默认的1秒
+ *
+ * @author yukms 2019/1/25
+ */
+@TestPropertySource(properties = {"fake.web.retailer.page-cache.l1-enabled=true",
+    "fake.web.retailer.page-cache.lock-enabled=true"})
+public class PageCacheServiceL1Test extends BaseRedisServiceTest {
+    @Autowired
+    private PageCacheService pageCacheService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 第一次两级都未命中，紧接着命中一级缓存，一级缓存过期之后命中Redis
+     */
+    @Test
+    public void test_hitRatio() throws InterruptedException {
+        AtomicInteger rendered = new AtomicInteger();
+        render("/tiers", rendered);
+        double l1HitRatio = pageCacheService.getL1HitRatio();
+        render("/tiers", rendered);
+        Assert.assertTrue(pageCacheService.getL1HitRatio() > l1HitRatio);
+        double l2HitRatio = pageCacheService.getL2HitRatio();
+        Thread.sleep(1100);
+        render("/tiers", rendered);
+        Assert.assertTrue(pageCacheService.getL2HitRatio() > l2HitRatio);
+        Assert.assertEquals(1, rendered.get());
+    }
+
+    /**
+     * 不用分布式锁，同一个进程里同时未命中的请求也只生成一次页面
+     */
+    @Test
+    public void test_cacheRequest_singleFlight() throws Exception {
+        AtomicInteger rendered = new AtomicInteger();
+        long waits = pageCacheService.getSingleFlightWaits();
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        pageCacheService.setLockEnabled(false);
+        try {
+            List<Future<String>> pages = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                pages.add(executor.submit(() -> render("/single-flight", rendered)));
+            }
+            for (Future<String> page : pages) {
+                Assert.assertEquals("/single-flight", page.get());
+            }
+        } finally {
+            pageCacheService.setLockEnabled(true);
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, rendered.get());
+        Assert.assertTrue(pageCacheService.getSingleFlightWaits() > waits);
+    }
+
+    /**
+     * 生成页面失败时释放锁，下一次请求不用等锁过期
+     */
+    @Test
+    public void test_cacheRequest_lockReleasedOnFailure() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/broken");
+        try {
+            pageCacheService.cacheRequest(request, req -> {
+                throw new IllegalStateException("broken");
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("broken", e.getMessage());
+        }
+        Assert.assertFalse(stringRedisTemplate.hasKey("lock:cache:" + pageCacheService.hashRequest(request)));
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("/broken", render("/broken", new AtomicInteger()));
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    private String render(String uri, AtomicInteger rendered) {
+        PageCacheService.Page page = pageCacheService.cacheRequest(new MockHttpServletRequest("GET", uri), req -> {
+            rendered.incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new PageCacheService.Page("text/plain", uri.getBytes(StandardCharsets.UTF_8));
+        });
+        return new String(page.getBody(), StandardCharsets.UTF_8);
+    }
+}
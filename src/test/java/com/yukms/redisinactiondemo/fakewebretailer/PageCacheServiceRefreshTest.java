@@ -0,0 +1,97 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 后台刷新只有一个线程和长度为1的队列
+ *
+ * @author yukms 2019/1/25
+ */
+@TestPropertySource(properties = {"fake.web.retailer.page-cache.refresh-threads=1",
+    "fake.web.retailer.page-cache.refresh-queue-size=1"})
+public class PageCacheServiceRefreshTest extends BaseRedisServiceTest {
+    @Autowired
+    private PageCacheService pageCacheService;
+
+    /**
+     * 系数很大时页面还没变旧就会提前刷新，先返回旧页面
+     */
+    @Test
+    public void test_cacheRequest_xfetch() throws InterruptedException {
+        AtomicInteger version = new AtomicInteger();
+        Assert.assertEquals("/xfetch1", render("/xfetch", version, null));
+        pageCacheService.setXfetchBeta(1e9);
+        try {
+            long earlyRefreshes = pageCacheService.getEarlyRefreshes();
+            long staleHits = pageCacheService.getStaleHits();
+            long refreshes = pageCacheService.getRefreshes();
+            Assert.assertEquals("/xfetch1", render("/xfetch", version, null));
+            Assert.assertEquals(earlyRefreshes + 1, pageCacheService.getEarlyRefreshes());
+            Assert.assertEquals(staleHits, pageCacheService.getStaleHits());
+            for (int i = 0; i < 50 && pageCacheService.getRefreshes() == refreshes; i++) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(refreshes + 1, pageCacheService.getRefreshes());
+        } finally {
+            pageCacheService.setXfetchBeta(0);
+        }
+        Assert.assertEquals("/xfetch2", render("/xfetch", version, null));
+    }
+
+    /**
+     * 一个刷新正在执行、一个在排队时，第三个旧页面的刷新被放弃，旧页面照样返回
+     */
+    @Test
+    public void test_cacheRequest_droppedRefresh() throws InterruptedException {
+        AtomicInteger version = new AtomicInteger();
+        CountDownLatch gate = new CountDownLatch(1);
+        pageCacheService.setTtlSeconds(1);
+        pageCacheService.setStaleTtlSeconds(10);
+        try {
+            for (String uri : new String[] {"/a", "/b", "/c"}) {
+                render(uri, version, null);
+            }
+            Thread.sleep(1100);
+            long dropped = pageCacheService.getDroppedRefreshes();
+            for (String uri : new String[] {"/a", "/b", "/c"}) {
+                Assert.assertTrue(render(uri, version, gate).startsWith(uri));
+            }
+            Assert.assertEquals(dropped + 1, pageCacheService.getDroppedRefreshes());
+        } finally {
+            gate.countDown();
+            pageCacheService.setTtlSeconds(5 * 60);
+            pageCacheService.setStaleTtlSeconds(0);
+        }
+    }
+
+    /**
+     * @param gate 不为null时生成页面要等它放行
+     * @return 页面内容，路径加上版本号
+     */
+    private String render(String uri, AtomicInteger version, CountDownLatch gate) {
+        PageCacheService.Page page = pageCacheService.cacheRequest(new MockHttpServletRequest("GET", uri), () -> {
+            try {
+                // XFetch需要一个不为0的生成时间
+                Thread.sleep(20);
+                if (gate != null) {
+                    gate.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new PageCacheService.Page("text/plain",
+                (uri + version.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+        });
+        return new String(page.getBody(), StandardCharsets.UTF_8);
+    }
+}
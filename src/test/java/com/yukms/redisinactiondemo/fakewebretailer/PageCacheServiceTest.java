@@ -0,0 +1,208 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * @author yukms 2019/1/25
+ */
+public class PageCacheServiceTest extends BaseRedisServiceTest {
+    @Autowired
+    private PageCacheService pageCacheService;
+
+    @Test
+    public void test_hashRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/shop//items/");
+        request.addParameter("b", "2");
+        request.addParameter("a", "1");
+        request.addParameter("utm_source", "mail");
+        MockHttpServletRequest same = new MockHttpServletRequest("GET", "/shop/items");
+        same.addParameter("a", "1");
+        same.addParameter("gclid", "xyz");
+        same.addParameter("b", "2");
+        MockHttpServletRequest other = new MockHttpServletRequest("GET", "/shop/items");
+        other.addParameter("a", "2");
+        Assert.assertEquals(pageCacheService.hashRequest(request), pageCacheService.hashRequest(same));
+        Assert.assertNotEquals(pageCacheService.hashRequest(request), pageCacheService.hashRequest(other));
+    }
+
+    @Test
+    public void test_canNotCache() {
+        Assert.assertTrue(pageCacheService.canNotCache(new MockHttpServletRequest("POST", "/cart")));
+        MockHttpServletRequest dynamic = new MockHttpServletRequest("GET", "/home");
+        dynamic.addParameter("_", "1548000000");
+        Assert.assertTrue(pageCacheService.canNotCache(dynamic));
+        Assert.assertFalse(pageCacheService.canNotCache(new MockHttpServletRequest("GET", "/home")));
+    }
+
+    @Test
+    public void test_cacheRequest() {
+        AtomicInteger rendered = new AtomicInteger();
+        String html = "<html><body>" + StringUtils.repeat("<div>item</div>", 500) + "</body></html>";
+        for (int i = 0; i < 3; i++) {
+            PageCacheService.Page page = pageCacheService.cacheRequest(new MockHttpServletRequest("GET", "/home"),
+                request -> {
+                    rendered.incrementAndGet();
+                    return new PageCacheService.Page("text/html", html.getBytes(StandardCharsets.UTF_8));
+                });
+            Assert.assertEquals(html, new String(page.getBody(), StandardCharsets.UTF_8));
+            Assert.assertEquals("text/html", page.getContentType());
+        }
+        Assert.assertEquals(1, rendered.get());
+    }
+
+    @Test
+    public void test_getETag() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/etag");
+        Assert.assertNull(pageCacheService.getETag(request));
+        PageCacheService.Page page = pageCacheService.cacheRequest(request,
+            req -> new PageCacheService.Page("text/html", "<p>etag</p>".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(page.getETag(), pageCacheService.getETag(new MockHttpServletRequest("GET", "/etag/")));
+    }
+
+    /**
+     * 旧页面没有ETag，需要先刷新，不能直接返回304
+     */
+    @Test
+    public void test_getETag_stale() throws InterruptedException {
+        pageCacheService.setTtlSeconds(1);
+        pageCacheService.setStaleTtlSeconds(10);
+        try {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/etag/stale");
+            pageCacheService.cacheRequest(request,
+                req -> new PageCacheService.Page("text/html", "<p>etag</p>".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertNotNull(pageCacheService.getETag(request));
+            Thread.sleep(1100);
+            Assert.assertNull(pageCacheService.getETag(request));
+        } finally {
+            pageCacheService.setTtlSeconds(5 * 60);
+            pageCacheService.setStaleTtlSeconds(0);
+        }
+    }
+
+    @Test
+    public void test_codec() {
+        String html = "<html><body>" + StringUtils.repeat("<div>item</div>", 500) + "</body></html>";
+        byte[] body = html.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = PageCodec.encode(new PageCacheService.Page("text/html", body), 1024);
+        System.out.println("html: " + body.length + " bytes, encoded: " + encoded.length + " bytes");
+        Assert.assertTrue(encoded.length < body.length / 4);
+        Assert.assertArrayEquals(body, PageCodec.decode(encoded).getBody());
+        byte[] small = "<p>ok</p>".getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(small, PageCodec.decode(PageCodec.encode(new PageCacheService.Page(null, small), 1024))
+            .getBody());
+        PageCacheService.Page withHeaders = PageCodec.decode(PageCodec.encode(new PageCacheService.Page("text/html",
+            Collections.singletonMap("Cache-Control", "max-age=60"), small), 1024));
+        Assert.assertEquals("max-age=60", withHeaders.getHeaders().get("Cache-Control"));
+        Assert.assertArrayEquals(small, withHeaders.getBody());
+    }
+
+    /**
+     * 20个线程同时请求同一个过期的页面，只生成一次
+     */
+    @Test
+    public void test_cacheRequest_stampede() throws Exception {
+        AtomicInteger rendered = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        pageCacheService.setLockEnabled(true);
+        try {
+            List<Future<PageCacheService.Page>> pages = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                pages.add(executor.submit(
+                    () -> pageCacheService.cacheRequest(new MockHttpServletRequest("GET", "/hot"), request -> {
+                        rendered.incrementAndGet();
+                        sleep();
+                        return new PageCacheService.Page("text/html", "hot".getBytes(StandardCharsets.UTF_8));
+                    })));
+            }
+            for (Future<PageCacheService.Page> page : pages) {
+                Assert.assertEquals("hot", new String(page.get().getBody(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            pageCacheService.setLockEnabled(false);
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, rendered.get());
+        System.out.println("single-flight waits: " + pageCacheService.getSingleFlightWaits() + ", L2 hit ratio: " +
+            pageCacheService.getL2HitRatio());
+    }
+
+    /**
+     * 页面变旧之后先返回旧页面，后台刷新之后返回新页面
+     */
+    @Test
+    public void test_cacheRequest_staleWhileRevalidate() throws InterruptedException {
+        AtomicInteger version = new AtomicInteger();
+        pageCacheService.setTtlSeconds(1);
+        pageCacheService.setStaleTtlSeconds(10);
+        try {
+            Assert.assertEquals("1", render(version));
+            Thread.sleep(1100);
+            long refreshes = pageCacheService.getRefreshes();
+            long staleHits = pageCacheService.getStaleHits();
+            Assert.assertEquals("1", render(version));
+            for (int i = 0; i < 50 && pageCacheService.getRefreshes() == refreshes; i++) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals("2", render(version));
+            Assert.assertEquals(2, version.get());
+            Assert.assertEquals(staleHits + 1, pageCacheService.getStaleHits());
+        } finally {
+            pageCacheService.setTtlSeconds(5 * 60);
+            pageCacheService.setStaleTtlSeconds(0);
+        }
+    }
+
+    /**
+     * 只传入请求处理逻辑时不在后台刷新，旧页面在当前线程重新生成
+     */
+    @Test
+    public void test_cacheRequest_staleRendersInline() throws InterruptedException {
+        AtomicInteger version = new AtomicInteger();
+        pageCacheService.setTtlSeconds(1);
+        pageCacheService.setStaleTtlSeconds(10);
+        try {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/inline");
+            Assert.assertEquals("1", renderInline(request, version));
+            Thread.sleep(1100);
+            Assert.assertEquals("2", renderInline(request, version));
+        } finally {
+            pageCacheService.setTtlSeconds(5 * 60);
+            pageCacheService.setStaleTtlSeconds(0);
+        }
+    }
+
+    private String render(AtomicInteger version) {
+        PageCacheService.Page page = pageCacheService.cacheRequest(new MockHttpServletRequest("GET", "/stale"),
+            () -> new PageCacheService.Page("text/plain",
+                String.valueOf(version.incrementAndGet()).getBytes(StandardCharsets.UTF_8)));
+        return new String(page.getBody(), StandardCharsets.UTF_8);
+    }
+
+    private String renderInline(MockHttpServletRequest request, AtomicInteger version) {
+        PageCacheService.Page page = pageCacheService.cacheRequest(request, req -> new PageCacheService.Page(
+            "text/plain", String.valueOf(version.incrementAndGet()).getBytes(StandardCharsets.UTF_8)));
+        return new String(page.getBody(), StandardCharsets.UTF_8);
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
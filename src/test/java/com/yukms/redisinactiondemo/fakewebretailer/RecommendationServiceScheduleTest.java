@@ -0,0 +1,38 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.util.Collections;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 开启定时计算推荐，每秒计算一次
+ *
+ * @author yukms 2019/1/25
+ */
+@TestPropertySource(properties = {"fake.web.retailer.recommendation.enabled=true",
+    "fake.web.retailer.recommendation.interval-seconds=1"})
+public class RecommendationServiceScheduleTest extends BaseRedisServiceTest {
+    @Autowired
+    private RecommendationService recommendationService;
+    @Autowired
+    private TokenCookieService tokenCookieService;
+
+    @Test
+    public void test_scheduledRebuild() throws InterruptedException {
+        try {
+            tokenCookieService.updateToken("token0", "user0", "laptop");
+            tokenCookieService.addToCart("token0", "mouse", 1);
+            for (int i = 0; i < 50 && recommendationService.getAlsoBought("laptop", 10).isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(Collections.singletonList("mouse"), recommendationService.getAlsoBought("laptop", 10));
+        } finally {
+            // 不影响其他测试
+            recommendationService.stop();
+        }
+    }
+}
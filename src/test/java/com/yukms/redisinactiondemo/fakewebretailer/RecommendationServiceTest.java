@@ -0,0 +1,98 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * @author yukms 2019/1/25
+ */
+public class RecommendationServiceTest extends BaseRedisServiceTest {
+    @Autowired
+    private RecommendationService recommendationService;
+    @Autowired
+    private TokenCookieService tokenCookieService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void test_rebuild() {
+        for (int i = 0; i < 30; i++) {
+            String token = "token" + i;
+            tokenCookieService.updateToken(token, "user" + i, "phone");
+            tokenCookieService.addToCart(token, i < 20 ? "case" : "charger", 1);
+            if (i % 3 == 0) {
+                tokenCookieService.addToCart(token, "charger", 1);
+            }
+        }
+        tokenCookieService.updateToken("token30", "user30", "laptop");
+        // 已经没有人购买的旧推荐
+        stringRedisTemplate.opsForZSet().add("also:tablet", "case", 1);
+        Assert.assertEquals(31, recommendationService.rebuild(true));
+        Assert.assertEquals(Arrays.asList("case", "charger"), recommendationService.getAlsoBought("phone", 10));
+        Assert.assertTrue(recommendationService.getAlsoBought("laptop", 10).isEmpty());
+        Assert.assertTrue(recommendationService.getAlsoBought("tablet", 10).isEmpty());
+    }
+
+    @Test
+    public void test_rebuild_incrementally() {
+        tokenCookieService.updateToken("token0", "user0", "laptop");
+        tokenCookieService.addToCart("token0", "mouse", 1);
+        Assert.assertEquals(1, recommendationService.rebuild(true));
+        Assert.assertEquals(Collections.singletonList("mouse"), recommendationService.getAlsoBought("laptop", 10));
+
+        tokenCookieService.addToCart("token1", "case", 1);
+        tokenCookieService.updateToken("token1", "user1", "phone");
+        recommendationService.rebuild(false);
+        Assert.assertEquals(Collections.singletonList("case"), recommendationService.getAlsoBought("phone", 10));
+        Assert.assertEquals(Collections.singletonList("mouse"), recommendationService.getAlsoBought("laptop", 10));
+
+        tokenCookieService.addToCart("token0", "mouse", 0);
+        tokenCookieService.updateToken("token0", "user0", "laptop");
+        recommendationService.rebuild(false);
+        Assert.assertTrue(recommendationService.getAlsoBought("laptop", 10).isEmpty());
+        Assert.assertEquals(Collections.singletonList("case"), recommendationService.getAlsoBought("phone", 10));
+    }
+
+    /**
+     * 全量计算时重新给商品编号，已经没有会话的商品不再占着内存
+     */
+    @Test
+    public void test_rebuild_compactItems() {
+        tokenCookieService.updateToken("token0", "user0", "laptop");
+        tokenCookieService.addToCart("token0", "mouse", 1);
+        recommendationService.rebuild(true);
+        stringRedisTemplate.delete(Arrays.asList("viewed:token0", "cart:token0"));
+        tokenCookieService.updateToken("token1", "user1", "phone");
+        tokenCookieService.addToCart("token1", "case", 1);
+        recommendationService.rebuild(true);
+        Assert.assertEquals(2, recommendationService.getItemCount());
+        Assert.assertTrue(recommendationService.getAlsoBought("laptop", 10).isEmpty());
+        Assert.assertEquals(Collections.singletonList("case"), recommendationService.getAlsoBought("phone", 10));
+    }
+
+    /**
+     * 会话超过上限时仍然写入推荐，但是不保留会话，下一次还是全量计算
+     */
+    @Test
+    public void test_rebuild_maxSessions() {
+        recommendationService.setMaxSessions(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                tokenCookieService.updateToken("token" + i, "user" + i, "phone");
+                tokenCookieService.addToCart("token" + i, "case", 1);
+            }
+            Assert.assertEquals(2, recommendationService.rebuild(true));
+            Assert.assertEquals(Collections.singletonList("case"), recommendationService.getAlsoBought("phone", 10));
+            // 没有保留会话，这次仍然遍历所有会话
+            Assert.assertEquals(2, recommendationService.rebuild(false));
+        } finally {
+            recommendationService.setMaxSessions(1000000);
+        }
+    }
+}
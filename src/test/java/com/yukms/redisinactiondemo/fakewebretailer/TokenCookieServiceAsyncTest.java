@@ -0,0 +1,56 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 异步更新令牌，只有一个后台线程和长度为1的队列，连续浏览时大部分浏览统计会被丢弃
+ *
+ * @author yukms 2019/1/25
+ */
+@TestPropertySource(properties = {"fake.web.retailer.async-update-token=true",
+    "fake.web.retailer.async-update-threads=1", "fake.web.retailer.async-update-queue-size=1"})
+public class TokenCookieServiceAsyncTest extends BaseRedisServiceTest {
+    private static final int TIMES = 200;
+    @Autowired
+    private TokenCookieService tokenCookieService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void test_updateToken_async() throws InterruptedException {
+        long dropped = tokenCookieService.getDroppedUpdates();
+        for (int i = 0; i < TIMES; i++) {
+            tokenCookieService.updateToken("token" + i, "user" + i, "item" + i);
+            // 登录散列是同步写入的，紧接着检查令牌一定能查到用户
+            Assert.assertEquals("user" + i, tokenCookieService.checkToken("token" + i));
+        }
+        // 浏览统计被丢弃时用户仍然是登录状态
+        Assert.assertEquals((long) TIMES, (long) stringRedisTemplate.opsForHash().size("login:"));
+        Assert.assertEquals((long) TIMES, (long) stringRedisTemplate.opsForZSet().size("recent:"));
+        int viewed = 0;
+        for (int i = 0; i < 100 && viewed + tokenCookieService.getDroppedUpdates() - dropped < TIMES; i++) {
+            Thread.sleep(50);
+            viewed = 0;
+            for (int j = 0; j < TIMES; j++) {
+                if (stringRedisTemplate.hasKey("viewed:token" + j)) {
+                    viewed++;
+                }
+            }
+        }
+        Assert.assertEquals(TIMES, viewed + tokenCookieService.getDroppedUpdates() - dropped);
+        Assert.assertTrue(viewed > 0);
+    }
+
+    @Test
+    public void test_updateToken_async_withoutItem() {
+        tokenCookieService.updateToken("token", "yukms", null);
+        Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+        Assert.assertEquals(0, tokenCookieService.getCleanupBacklog());
+        Assert.assertFalse(stringRedisTemplate.hasKey("viewed:token"));
+    }
+}
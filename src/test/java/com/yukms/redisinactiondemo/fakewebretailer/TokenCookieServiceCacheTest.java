@@ -0,0 +1,81 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 开启令牌本地缓存，已登录令牌缓存3秒，未登录令牌缓存0.5秒
+ *
+ * @author yukms 2019/1/25
+ */
+@TestPropertySource(properties = {"fake.web.retailer.token-cache-enabled=true",
+    "fake.web.retailer.token-cache-ttl-millis=3000", "fake.web.retailer.token-cache-negative-ttl-millis=500"})
+public class TokenCookieServiceCacheTest extends BaseRedisServiceTest {
+    @Autowired
+    private TokenCookieService tokenCookieService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void test_checkToken_ttl() throws InterruptedException {
+        tokenCookieService.updateToken("token", "yukms", null);
+        Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+        stringRedisTemplate.opsForHash().delete("login:", "token");
+        // 缓存时间内仍然返回缓存的用户
+        Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+        Thread.sleep(3100);
+        Assert.assertNull(tokenCookieService.checkToken("token"));
+    }
+
+    @Test
+    public void test_checkToken_negativeTtl() throws InterruptedException {
+        Assert.assertNull(tokenCookieService.checkToken("token"));
+        stringRedisTemplate.opsForHash().put("login:", "token", "yukms");
+        Assert.assertNull(tokenCookieService.checkToken("token"));
+        Thread.sleep(600);
+        Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+    }
+
+    /**
+     * 刚登录的令牌不会因为缓存了未登录而查不到
+     */
+    @Test
+    public void test_updateToken_invalidate() {
+        Assert.assertNull(tokenCookieService.checkToken("token"));
+        tokenCookieService.updateToken("token", "yukms", "item");
+        Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+    }
+
+    /**
+     * 清理会话之后广播的失效消息会删除本地缓存的令牌，不用等到缓存过期
+     */
+    @Test
+    public void test_cleanSessionBatch_invalidate() throws InterruptedException {
+        for (int i = 0; i < 11; i++) {
+            tokenCookieService.updateToken("token" + i, "user" + i, null);
+        }
+        Assert.assertEquals("user0", tokenCookieService.checkToken("token0"));
+        Assert.assertEquals(1, tokenCookieService.cleanSessionBatch());
+        for (int i = 0; i < 30 && tokenCookieService.checkToken("token0") != null; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertNull(tokenCookieService.checkToken("token0"));
+        Assert.assertEquals("user10", tokenCookieService.checkToken("token10"));
+    }
+
+    @Test
+    public void test_tokenCacheHitRatio() {
+        tokenCookieService.updateToken("token", "yukms", null);
+        tokenCookieService.checkToken("token");
+        double ratio = tokenCookieService.getTokenCacheHitRatio();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+        }
+        Assert.assertTrue(tokenCookieService.getTokenCacheHitRatio() > ratio);
+        Assert.assertTrue(tokenCookieService.getTokenCacheHitRatio() < 1D);
+    }
+}
@@ -1,7 +1,17 @@
 package com.yukms.redisinactiondemo.fakewebretailer;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import com.yukms.redisinactiondemo.common.util.AverageTimer;
+import com.yukms.redisinactiondemo.common.util.SystemUtil;
+import com.yukms.redisinactiondemo.fakewebretailer.entity.CartSummary;
+import org.junit.Assert;
+import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 
 /**
  * @author yukms 2019/1/10.
@@ -9,4 +19,234 @@ import org.springframework.beans.factory.annotation.Autowired;
 public class TokenCookieServiceTest extends BaseRedisServiceTest {
     @Autowired
     private TokenCookieService tokenCookieService;
-}
\ No newline at end of file
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private ViewRankMirror viewRankMirror;
+    @Autowired
+    private SignedTokens signedTokens;
+    private static final int TIMES = 1000;
+
+    @Test
+    public void test_updateToken() {
+        for (int i = 0; i < 30; i++) {
+            tokenCookieService.updateToken("token", "yukms", "item" + i);
+        }
+        Assert.assertEquals("yukms", tokenCookieService.checkToken("token"));
+        Assert.assertEquals(25L, (long) stringRedisTemplate.opsForZSet().size("viewed:token"));
+        Assert.assertEquals(1.0D, stringRedisTemplate.opsForZSet().score("viewed:", "item0"), 0D);
+    }
+
+    @Test
+    public void test_cleanSessionBatch() {
+        for (int i = 0; i < 25; i++) {
+            tokenCookieService.updateToken("token" + i, "user" + i, "item" + i);
+            tokenCookieService.addToCart("token" + i, "item" + i, 1);
+        }
+        Assert.assertEquals(15, tokenCookieService.getCleanupBacklog());
+        Assert.assertEquals(15, tokenCookieService.cleanSessionBatch());
+        Assert.assertEquals(0, tokenCookieService.getCleanupBacklog());
+        Assert.assertEquals(0, tokenCookieService.cleanSessionBatch());
+        Assert.assertEquals(10L, (long) stringRedisTemplate.opsForHash().size("login:"));
+        Assert.assertFalse(stringRedisTemplate.hasKey("cart:token0"));
+        Assert.assertTrue(stringRedisTemplate.hasKey("cart:token24"));
+    }
+
+    @Test
+    public void test_cleanSessionBatch_sharded() {
+        tokenCookieService.setSessionShards(2);
+        try {
+            for (int i = 0; i < 25; i++) {
+                tokenCookieService.updateToken("token" + i, "user" + i, "item" + i);
+            }
+            Assert.assertEquals("user0", tokenCookieService.checkToken("token0"));
+            Assert.assertFalse(stringRedisTemplate.hasKey("login:"));
+            long size = stringRedisTemplate.opsForHash().size("login:0") + stringRedisTemplate.opsForHash()
+                .size("login:1");
+            Assert.assertEquals(25L, size);
+            tokenCookieService.cleanSessionBatch();
+            Assert.assertEquals(0, tokenCookieService.getCleanupBacklog());
+            Assert.assertTrue(stringRedisTemplate.opsForZSet().size("recent:0") <= 5L);
+            Assert.assertTrue(stringRedisTemplate.opsForZSet().size("recent:1") <= 5L);
+        } finally {
+            tokenCookieService.setSessionShards(0);
+        }
+    }
+
+    /**
+     * 清理失败时令牌留在最后浏览页面记录里面，领取超时之后重新领取
+     */
+    @Test
+    public void test_cleanSessionBatch_failed() throws InterruptedException {
+        tokenCookieService.setSessionClaimTimeoutSeconds(1);
+        try {
+            for (int i = 0; i < 15; i++) {
+                tokenCookieService.updateToken("token" + i, "user" + i, "item" + i);
+            }
+            // 登录散列变成字符串之后流水线里面的HDEL会失败
+            stringRedisTemplate.delete("login:");
+            stringRedisTemplate.opsForValue().set("login:", "broken");
+            try {
+                tokenCookieService.cleanSessionBatch();
+                Assert.fail();
+            } catch (RuntimeException expected) {
+                // 领取的令牌没有被删除
+            }
+            Assert.assertEquals(15L, (long) stringRedisTemplate.opsForZSet().size("recent:"));
+            stringRedisTemplate.delete("login:");
+            Thread.sleep(2100);
+            Assert.assertEquals(5, tokenCookieService.cleanSessionBatch());
+            Assert.assertEquals(10L, (long) stringRedisTemplate.opsForZSet().size("recent:"));
+            Assert.assertFalse(stringRedisTemplate.hasKey("cleaning:"));
+            Assert.assertEquals(0, tokenCookieService.cleanSessionBatch());
+        } finally {
+            tokenCookieService.setSessionClaimTimeoutSeconds(30);
+        }
+    }
+
+    /**
+     * 访问Redis失败之后清理线程继续清理
+     */
+    @Test
+    public void test_sessionCleaners_failed() throws InterruptedException {
+        tokenCookieService.setSessionClaimTimeoutSeconds(1);
+        tokenCookieService.setSessionCleanupWorkers(1);
+        try {
+            for (int i = 0; i < 15; i++) {
+                tokenCookieService.updateToken("token" + i, "user" + i, "item" + i);
+            }
+            stringRedisTemplate.delete("login:");
+            stringRedisTemplate.opsForValue().set("login:", "broken");
+            long failures = tokenCookieService.getSessionCleanupFailures();
+            tokenCookieService.startSessionCleaners();
+            for (int i = 0; i < 100 && tokenCookieService.getSessionCleanupFailures() == failures; i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(tokenCookieService.getSessionCleanupFailures() > failures);
+            stringRedisTemplate.delete("login:");
+            for (int i = 0; i < 100 && tokenCookieService.getCleanupBacklog() > 0; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(0, tokenCookieService.getCleanupBacklog());
+        } finally {
+            tokenCookieService.stopSessionCleaners();
+            tokenCookieService.setSessionCleanupWorkers(0);
+            tokenCookieService.setSessionClaimTimeoutSeconds(30);
+        }
+    }
+
+    @Test
+    public void test_viewRankMirror() {
+        Assert.assertEquals(-1L, viewRankMirror.getStalenessMillis());
+        for (int i = 0; i < 3; i++) {
+            tokenCookieService.updateToken("token", "yukms", "hot");
+        }
+        tokenCookieService.updateToken("token", "yukms", "cold");
+        viewRankMirror.setSize(1);
+        try {
+            // 镜像还没有刷新时查询Redis，结果和镜像相同
+            Assert.assertTrue(tokenCookieService.canCache("hot"));
+            Assert.assertFalse(tokenCookieService.canCache("cold"));
+            viewRankMirror.refresh("viewed:");
+            Assert.assertTrue(viewRankMirror.getStalenessMillis() >= 0);
+            Assert.assertTrue(tokenCookieService.canCache("hot"));
+            Assert.assertFalse(tokenCookieService.canCache("cold"));
+        } finally {
+            viewRankMirror.stop();
+            viewRankMirror.setSize(10000);
+        }
+    }
+
+    @Test
+    public void test_rescaleViewed() {
+        for (int i = 0; i < 4; i++) {
+            tokenCookieService.updateToken("token", "yukms", "item");
+        }
+        Assert.assertEquals(0L, tokenCookieService.rescaleViewed());
+        Assert.assertEquals(2D, stringRedisTemplate.opsForZSet().score("viewed:", "item"), 0D);
+        // 同一个周期里面只有一次能抢到租约
+        Assert.assertEquals(-1L, tokenCookieService.rescaleViewed());
+        Assert.assertEquals(2D, stringRedisTemplate.opsForZSet().score("viewed:", "item"), 0D);
+    }
+
+    @Test
+    public void test_cartSummary() {
+        Map<String, Integer> counts = new HashMap<>();
+        counts.put("item1", 2);
+        counts.put("item2", 1);
+        counts.put("item3", 5);
+        tokenCookieService.updateCart("token", counts);
+        counts.clear();
+        counts.put("item3", 0);
+        tokenCookieService.updateCart("token", counts);
+        stringRedisTemplate.opsForHash().put("item:item1", "price", "150");
+        stringRedisTemplate.opsForHash().put("item:item1", "stock", "10");
+        stringRedisTemplate.opsForHash().put("item:item2", "price", "99");
+        stringRedisTemplate.opsForHash().put("item:item2", "stock", "0");
+        CartSummary summary = tokenCookieService.getCartSummary("token");
+        Assert.assertEquals(2, summary.getItems().size());
+        Assert.assertEquals(399L, summary.getTotalPrice());
+        Assert.assertFalse(summary.isAllInStock());
+    }
+
+    @Test
+    public void test_signedToken() {
+        signedTokens.setEnabled(true);
+        signedTokens.setSecret("secret");
+        signedTokens.start();
+        try {
+            String token = tokenCookieService.issueToken("yukms");
+            Assert.assertEquals("yukms", tokenCookieService.checkToken(token));
+            Assert.assertNull(tokenCookieService.checkToken(token + "x"));
+            tokenCookieService.revokeToken(token);
+            Assert.assertNull(tokenCookieService.checkToken(token));
+            signedTokens.refresh();
+            Assert.assertEquals(1, signedTokens.getRevokedTokens());
+            Assert.assertNull(tokenCookieService.checkToken(token));
+            // 还没有写入Redis的作废签名不会被全量加载覆盖
+            stringRedisTemplate.delete("revoked:");
+            signedTokens.refresh();
+            Assert.assertNull(tokenCookieService.checkToken(token));
+        } finally {
+            signedTokens.stop();
+            signedTokens.setEnabled(false);
+        }
+        Assert.assertEquals(0, signedTokens.getRevokedTokens());
+    }
+
+    /**
+     * 没有开启签名令牌时作废令牌什么也不做，签发令牌抛出异常
+     */
+    @Test
+    public void test_signedToken_disabled() {
+        Assert.assertFalse(signedTokens.isEnabled());
+        tokenCookieService.revokeToken("payload.signature");
+        Assert.assertFalse(stringRedisTemplate.hasKey("revoked:"));
+        Assert.assertEquals(0, signedTokens.getRevokedTokens());
+        try {
+            tokenCookieService.issueToken("yukms");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // 没有签名密钥
+        }
+    }
+
+    /**
+     * 比较5次网络往返的旧实现与一次脚本调用的页面浏览延迟
+     */
+    @Test
+    public void test_updateToken_latency() {
+        ZSetOperations<String, String> zSetOperations = stringRedisTemplate.opsForZSet();
+        AverageTimer.time("five round trips", TIMES, i -> {
+            long timetamp = SystemUtil.getNowTimetamp();
+            String token = "token" + i;
+            stringRedisTemplate.opsForHash().put("login:", token, "user" + i);
+            zSetOperations.add("recent:", token, timetamp);
+            zSetOperations.add("viewed:" + token, "item" + i, timetamp);
+            zSetOperations.removeRange("viewed:" + token, 0, -26);
+            zSetOperations.incrementScore("viewed:", "item" + i, 1);
+        });
+        AverageTimer.time("one script", TIMES,
+            i -> tokenCookieService.updateToken("token" + i, "user" + i, "item" + i));
+    }
+}
@@ -0,0 +1,102 @@
+package com.yukms.redisinactiondemo.fakewebretailer;
+
+import java.util.List;
+import java.util.Random;
+
+import com.yukms.redisinactiondemo.BaseRedisServiceTest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * @author yukms 2019/1/25
+ */
+public class ViewSketchTest extends BaseRedisServiceTest {
+    @Autowired
+    private TokenCookieService tokenCookieService;
+    @Autowired
+    private ViewSketch viewSketch;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    private static final int ITEMS = 5000;
+    private static final int VIEWS = 20000;
+
+    /**
+     * 用同一组近似Zipf分布的浏览分别写入有序集合和Count-Min Sketch，比较估计误差和占用的内存
+     */
+    @Test
+    public void test_compare_with_zset() {
+        int[] views = new int[ITEMS];
+        Random random = new Random(42);
+        try {
+            for (int i = 0; i < VIEWS; i++) {
+                int item = (int) Math.floor(Math.pow(ITEMS, random.nextDouble())) - 1;
+                views[item]++;
+                tokenCookieService.setViewCounter(TokenCookieService.ViewCounter.ZSET);
+                tokenCookieService.updateToken("token", "yukms", "item" + item);
+                tokenCookieService.setViewCounter(TokenCookieService.ViewCounter.SKETCH);
+                tokenCookieService.updateToken("token", "yukms", "item" + item);
+            }
+        } finally {
+            tokenCookieService.setViewCounter(TokenCookieService.ViewCounter.ZSET);
+        }
+        long maxError = 0;
+        long totalError = 0;
+        for (int i = 0; i < ITEMS; i++) {
+            long estimate = viewSketch.estimate("item" + i);
+            Assert.assertTrue(estimate >= views[i]);
+            maxError = Math.max(maxError, estimate - views[i]);
+            totalError += estimate - views[i];
+        }
+        Assert.assertEquals(views[0], stringRedisTemplate.opsForZSet().score("viewed:", "item0"), 0D);
+        Assert.assertTrue(viewSketch.isTop("item0"));
+        System.out.println("sketch max error: " + maxError + ", average error: " + (double) totalError / ITEMS);
+        System.out.println("zset memory: " + memoryUsage("viewed:") + " bytes");
+        System.out.println("sketch memory: " + memoryUsage(ViewSketch.SKETCH) + " bytes, top-k memory: " +
+            memoryUsage(ViewSketch.TOP) + " bytes");
+        // BITFIELD只会把字符串扩展到写过的最大下标，所以不会超过sketch的大小
+        Assert.assertTrue(stringRedisTemplate.opsForValue().size(ViewSketch.SKETCH) <= viewSketch.sketchBytes());
+    }
+
+    @Test
+    public void test_decay() {
+        tokenCookieService.setViewCounter(TokenCookieService.ViewCounter.SKETCH);
+        try {
+            for (int i = 0; i < 10; i++) {
+                tokenCookieService.updateToken("token", "yukms", "item");
+            }
+        } finally {
+            tokenCookieService.setViewCounter(TokenCookieService.ViewCounter.ZSET);
+        }
+        Assert.assertEquals(10L, viewSketch.estimate("item"));
+        viewSketch.decay();
+        Assert.assertEquals(5L, viewSketch.estimate("item"));
+        Assert.assertEquals(5D, stringRedisTemplate.opsForZSet().score(ViewSketch.TOP, "item"), 0D);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_decay_in_chunks() {
+        long last = viewSketch.sketchBytes() / 4 - 1;
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> ((StringRedisConnection) connection)
+            .execute("BITFIELD", ViewSketch.SKETCH, "SET", "u32", "#" + last, "8"));
+        // 最后一个计数器有值，所有分段都要处理
+        Assert.assertEquals((last + 1000) / 1000, viewSketch.decay());
+        List<Long> counts = stringRedisTemplate.execute((RedisCallback<List<Long>>) connection ->
+            (List<Long>) ((StringRedisConnection) connection).execute("BITFIELD", ViewSketch.SKETCH, "GET", "u32",
+                "#" + last));
+        Assert.assertEquals(4L, (long) counts.get(0));
+        // 空的sketch只需要一次调用
+        stringRedisTemplate.delete(ViewSketch.SKETCH);
+        Assert.assertEquals(1, viewSketch.decay());
+    }
+
+    private Long memoryUsage(String key) {
+        return stringRedisTemplate.execute(
+            (RedisCallback<Long>) connection -> (Long) ((StringRedisConnection) connection).execute("MEMORY", "USAGE",
+                key));
+    }
+}